@@ -0,0 +1,94 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Decodes images of any format that BitmapFactory supports, and serves as the fallback
+ * decoder for formats without a specialized decoder.
+ *
+ * All bitmaps are decoded as mutable bitmaps, so that they can be reused as the target
+ * of a later decode via BitmapFactory.Options.inBitmap. If the target does not fit the
+ * image, for example since it is smaller, or since we run on a device older than KitKat
+ * and the sizes do not match exactly, the image is decoded into a new bitmap instead.
+ */
+public class BitmapFrameDecoder implements FrameDecoder<Bitmap> {
+
+    @Override
+    public boolean supports(int format) {
+        return true;
+    }
+
+    /**
+     * BitmapFactory rounds the sample size down to a power of two for most formats.
+     */
+    @Override
+    public int getSampleSize(ImageHeader header, int targetWidth, int targetHeight) {
+        return header.getSampleSize(targetWidth, targetHeight, Integer.MAX_VALUE, true);
+    }
+
+    @Override
+    public Bitmap decode(byte[] data, int length, int sampleSize, Bitmap target) {
+        BitmapFactory.Options options = createOptions(sampleSize, target);
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+    }
+
+    /**
+     * Decode directly from the file descriptor so that the encoded data is never
+     * copied onto the Java heap.
+     */
+    @Override
+    public Bitmap decode(File file, int sampleSize, Bitmap target) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            BitmapFactory.Options options = createOptions(sampleSize, target);
+            try {
+                return BitmapFactory.decodeFileDescriptor(inputStream.getFD(), null, options);
+            } catch (IllegalArgumentException e) {
+                inputStream.getChannel().position(0);
+                options.inBitmap = null;
+                return BitmapFactory.decodeFileDescriptor(inputStream.getFD(), null, options);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static BitmapFactory.Options createOptions(int sampleSize, Bitmap target) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = target;
+        return options;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of byte arrays that are reused for receiving images.
+ *
+ * acquire() returns the smallest pooled array that is large enough, or allocates a new one.
+ * Arrays that are handed back with release() are kept; once the pool is full, a larger
+ * array replaces the smallest one, so that the pool converges to the largest images.
+ * The pool registers itself as an owner of receive buffers with the memory budget.
+ *
+ * The memory usage of the pool includes the arrays that have been handed out and not
+ * released yet, since these are the ones that hold the images while they are in use.
+ * Trimming only drops the idle arrays. Hence every array that is released to the pool
+ * has to come from acquire() or poll().
+ */
+public class BufferPool implements MemoryBudget.Owner {
+    private final int mMaxBuffers;
+    private final List<byte[]> mBuffers = new ArrayList<>();
+    /** Bytes of the arrays that have been handed out and not released yet. */
+    private long mInUseBytes;
+
+    public BufferPool(int maxBuffers) {
+        mMaxBuffers = maxBuffers;
+    }
+
+    /**
+     * @return an array of at least minSize bytes. Its content is undefined.
+     */
+    public synchronized byte[] acquire(int minSize) {
+        byte[] buffer = poll(minSize);
+        if (buffer == null) {
+            buffer = new byte[minSize];
+            mInUseBytes += buffer.length;
+        }
+        return buffer;
+    }
+
+    /**
+     * @return a pooled array of at least minSize bytes, or null if there is none.
+     */
+    public synchronized byte[] poll(int minSize) {
+        int best = -1;
+        for (int i = 0; i < mBuffers.size(); ++i) {
+            int length = mBuffers.get(i).length;
+            if (length >= minSize && (best == -1 || length < mBuffers.get(best).length)) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        byte[] buffer = mBuffers.remove(best);
+        mInUseBytes += buffer.length;
+        return buffer;
+    }
+
+    /**
+     * Hand an array back to the pool. The caller must not use the array afterwards.
+     */
+    public synchronized void release(byte[] buffer) {
+        mInUseBytes -= buffer.length;
+        if (mBuffers.size() < mMaxBuffers) {
+            mBuffers.add(buffer);
+            return;
+        }
+        int smallest = -1;
+        for (int i = 0; i < mBuffers.size(); ++i) {
+            if (smallest == -1 || mBuffers.get(i).length < mBuffers.get(smallest).length) {
+                smallest = i;
+            }
+        }
+        if (smallest >= 0 && mBuffers.get(smallest).length < buffer.length) {
+            mBuffers.set(smallest, buffer);
+        }
+    }
+
+    @Override
+    public synchronized long getMemoryUsage() {
+        long usage = mInUseBytes;
+        for (byte[] buffer : mBuffers) {
+            usage += buffer.length;
+        }
+        return usage;
+    }
+
+    @Override
+    public int getTrimPriority() {
+        return MemoryBudget.PRIORITY_BUFFER;
+    }
+
+    @Override
+    public synchronized void trimMemory() {
+        mBuffers.clear();
+    }
+}
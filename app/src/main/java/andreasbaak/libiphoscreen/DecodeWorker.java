@@ -0,0 +1,290 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import android.graphics.Bitmap;
+import android.graphics.ColorMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decodes images on a dedicated background thread, so that the receiver can continue
+ * reading from the network while an image is decoded.
+ *
+ * Between the TAKEN and the DATA command of an image there are usually one to three
+ * seconds. warmUp() uses this gap to start the decode thread and to allocate a target
+ * bitmap of the size of the previous image. The next decode reuses this bitmap via
+ * BitmapFactory.Options.inBitmap, so that the allocation does not add to the time
+ * between the arrival of the image data and its display.
+ *
+ * The decoder for each image is chosen by a DecoderRegistry based on its format, and
+ * images that are larger than the target size are downscaled while they are decoded.
+ *
+ * Decoded images are then processed into frames of exactly the target size by a
+ * FrameProcessor. The decoded image is kept as the target of the next decode, and frames
+ * that are not displayed anymore come back through recycle() and are reused as the output
+ * of the next processing step, so that in the steady state neither step allocates.
+ */
+class DecodeWorker implements Executor, MemoryBudget.Owner, FrameHolder.Recycler {
+    private static final String THREAD_NAME = "DecodeWorker";
+
+    private final EventLog mEventLog = EventLog.get();
+    private final MemoryBudget mMemoryBudget;
+    private final ThreadPoolExecutor mExecutor;
+    /** Bitmap that the next image is decoded into, allocated by warmUp(). */
+    private final AtomicReference<Bitmap> mTargetBitmap = new AtomicReference<>();
+    private volatile int mLastWidth;
+    private volatile int mLastHeight;
+    /** Bitmap that the next decoded image is processed into. */
+    private final AtomicReference<Bitmap> mOutputBitmap = new AtomicReference<>();
+    private volatile int mLastOutputWidth;
+    private volatile int mLastOutputHeight;
+    private volatile boolean mShutdown;
+    private volatile int mTargetWidth;
+    private volatile int mTargetHeight;
+    /** Only used on the decode thread. */
+    private final DecoderRegistry<Bitmap> mDecoders;
+    private final FrameProcessor mProcessor = new FrameProcessor();
+
+    DecodeWorker(MemoryBudget memoryBudget) {
+        this(memoryBudget, createDecoders());
+    }
+
+    /**
+     * Create a worker with the given decoders instead of those of the platform.
+     */
+    DecodeWorker(MemoryBudget memoryBudget, DecoderRegistry<Bitmap> decoders) {
+        mMemoryBudget = memoryBudget;
+        mDecoders = decoders;
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, THREAD_NAME);
+            }
+        });
+        mMemoryBudget.register(this);
+    }
+
+    private static DecoderRegistry<Bitmap> createDecoders() {
+        DecoderRegistry<Bitmap> decoders = new DecoderRegistry<>();
+        decoders.register(new JpegFrameDecoder());
+        decoders.register(new WebpFrameDecoder());
+        decoders.register(new BitmapFrameDecoder());
+        return decoders;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Prepare for an image that is about to arrive: start the decode thread
+     * and allocate the target and output bitmaps on it.
+     */
+    void warmUp() {
+        mExecutor.prestartCoreThread();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prepareBitmap(mTargetBitmap, mLastWidth, mLastHeight);
+                prepareBitmap(mOutputBitmap, mLastOutputWidth, mLastOutputHeight);
+            }
+        });
+    }
+
+    private void prepareBitmap(AtomicReference<Bitmap> slot, int width, int height) {
+        if (width == 0 || height == 0 || slot.get() != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        long bytes = width * height * 4L;
+        if (!mMemoryBudget.ensureAvailable(bytes, this)) {
+            // Only an optimization: the decode allocates the bitmap itself if it has to.
+            mEventLog.record(EventLog.Event.DECODE_OVER_BUDGET, bytes);
+            return;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        if (!slot.compareAndSet(null, bitmap)) {
+            // A frame that is not displayed anymore has taken the slot in the meantime.
+            bitmap.recycle();
+            return;
+        }
+        mEventLog.record(EventLog.Event.WARMUP_BITMAP, (System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Display images at the given size, typically the size of the image view.
+     * Images are downscaled while decoding if they are considerably larger,
+     * and processed to fit the size exactly afterwards.
+     */
+    void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    /**
+     * @see FrameProcessor#setAspectRatio(float)
+     */
+    void setAspectRatio(float aspectRatio) {
+        mProcessor.setAspectRatio(aspectRatio);
+    }
+
+    /**
+     * @see FrameProcessor#setColorMatrix(ColorMatrix)
+     */
+    void setColorMatrix(ColorMatrix colorMatrix) {
+        mProcessor.setColorMatrix(colorMatrix);
+    }
+
+    /**
+     * Decode an image. Has to be called on the decode thread, i.e. from a task of execute().
+     */
+    Bitmap decode(byte[] data, int length) {
+        long start = System.nanoTime();
+        ImageHeader header = ImageHeader.parse(data, length);
+        Bitmap bitmap = mDecoders.decode(header, data, length, mTargetWidth, mTargetHeight,
+                mTargetBitmap.getAndSet(null));
+        mEventLog.record(EventLog.Event.IMAGE_DECODED, (System.nanoTime() - start) / 1000);
+        return process(remember(bitmap), header.orientation);
+    }
+
+    /**
+     * Decode an image directly from the file descriptor so that the encoded data is never
+     * copied onto the Java heap. Has to be called on the decode thread.
+     */
+    Bitmap decode(File imageFile) throws IOException {
+        long start = System.nanoTime();
+        ImageHeader header = mDecoders.readHeader(imageFile);
+        Bitmap bitmap = mDecoders.decode(header, imageFile, mTargetWidth, mTargetHeight,
+                mTargetBitmap.getAndSet(null));
+        mEventLog.record(EventLog.Event.IMAGE_DECODED, (System.nanoTime() - start) / 1000);
+        return process(remember(bitmap), header.orientation);
+    }
+
+    private Bitmap remember(Bitmap bitmap) {
+        if (bitmap != null) {
+            mLastWidth = bitmap.getWidth();
+            mLastHeight = bitmap.getHeight();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Process a decoded image into the frame that is displayed.
+     * The decoded image becomes the target of the next decode, unless it is the frame itself.
+     */
+    private Bitmap process(Bitmap decoded, int orientation) {
+        if (decoded == null) {
+            return null;
+        }
+        FrameTransform transform = mProcessor.computeTransform(decoded, orientation,
+                mTargetWidth, mTargetHeight);
+        if (!mProcessor.isRequired(transform)) {
+            return decoded;
+        }
+        long start = System.nanoTime();
+        int width = transform.outputWidth;
+        int height = transform.outputHeight;
+        Bitmap output = mOutputBitmap.getAndSet(null);
+        if (output != null && (output.getWidth() != width || output.getHeight() != height)) {
+            output.recycle();
+            output = null;
+        }
+        if (output == null) {
+            if (!mMemoryBudget.ensureAvailable(width * height * 4L, this)) {
+                // The frame has to be shown, so give up the target of the next decode instead.
+                Bitmap target = mTargetBitmap.getAndSet(null);
+                if (target != null) {
+                    target.recycle();
+                }
+            }
+            output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        mProcessor.process(decoded, transform, output);
+        mLastOutputWidth = width;
+        mLastOutputHeight = height;
+        keep(mTargetBitmap, decoded);
+        mEventLog.record(EventLog.Event.FRAME_PROCESSED, (System.nanoTime() - start) / 1000);
+        return output;
+    }
+
+    /**
+     * Keep a bitmap that is not displayed anymore for reuse: as the output of the next
+     * processing step if it has the size of the last frame, as the target of the next
+     * decode otherwise. If the respective bitmap exists already, the bitmap is recycled.
+     */
+    @Override
+    public void recycle(Bitmap bitmap) {
+        boolean isOutput = bitmap.getWidth() == mLastOutputWidth
+                && bitmap.getHeight() == mLastOutputHeight;
+        keep(isOutput ? mOutputBitmap : mTargetBitmap, bitmap);
+    }
+
+    private void keep(AtomicReference<Bitmap> slot, Bitmap bitmap) {
+        if (!mShutdown && bitmap.isMutable() && slot.compareAndSet(null, bitmap)) {
+            return;
+        }
+        bitmap.recycle();
+    }
+
+    void shutdown() {
+        mShutdown = true;
+        mExecutor.shutdownNow();
+        mMemoryBudget.unregister(this);
+        trimMemory();
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return getByteCount(mTargetBitmap.get()) + getByteCount(mOutputBitmap.get());
+    }
+
+    private static long getByteCount(Bitmap bitmap) {
+        return bitmap == null ? 0 : bitmap.getByteCount();
+    }
+
+    @Override
+    public int getTrimPriority() {
+        return MemoryBudget.PRIORITY_BUFFER;
+    }
+
+    @Override
+    public void trimMemory() {
+        Bitmap target = mTargetBitmap.getAndSet(null);
+        if (target != null) {
+            target.recycle();
+        }
+        Bitmap output = mOutputBitmap.getAndSet(null);
+        if (output != null) {
+            output.recycle();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the decoder for every frame based on its format, and the sample size
+ * based on the dimensions of the frame and the target size.
+ *
+ * The format and dimensions are taken from the header of the frame, see ImageHeader.
+ * Decoders are tried in the order of registration, so specialized decoders have to be
+ * registered before a generic fallback decoder.
+ *
+ * An instance must only be used by a single thread, since it reuses the buffer that
+ * the header of file-based frames is read into.
+ */
+public class DecoderRegistry<T> {
+    private final EventLog mEventLog = EventLog.get();
+    private final List<FrameDecoder<T>> mDecoders = new ArrayList<>();
+    private byte[] mHeaderBuffer;
+
+    public void register(FrameDecoder<T> decoder) {
+        mDecoders.add(decoder);
+    }
+
+    /**
+     * @return the first decoder that supports the format of the header, or null.
+     */
+    public FrameDecoder<T> select(ImageHeader header) {
+        for (FrameDecoder<T> decoder : mDecoders) {
+            if (decoder.supports(header.format)) {
+                return decoder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode an image that has been received into memory,
+     * downscaled as far as possible for the target size.
+     *
+     * @param target image that may be reused for the decoded image, or null.
+     * @return the decoded image or null if there is no decoder for the image.
+     */
+    public T decode(byte[] data, int length, int targetWidth, int targetHeight, T target) {
+        return decode(ImageHeader.parse(data, length), data, length, targetWidth, targetHeight, target);
+    }
+
+    /**
+     * Decode an image that has been received into memory and whose header has been parsed already.
+     *
+     * @param target image that may be reused for the decoded image, or null.
+     * @return the decoded image or null if there is no decoder for the image.
+     */
+    public T decode(ImageHeader header, byte[] data, int length, int targetWidth, int targetHeight,
+                    T target) {
+        FrameDecoder<T> decoder = select(header);
+        if (decoder == null) {
+            mEventLog.record(EventLog.Event.DECODER_MISSING, header.format);
+            return null;
+        }
+        int sampleSize = decoder.getSampleSize(header, targetWidth, targetHeight);
+        mEventLog.record(EventLog.Event.DECODE_SAMPLE_SIZE, sampleSize);
+        return decoder.decode(data, length, sampleSize, target);
+    }
+
+    /**
+     * Decode an image that has been received into a file,
+     * downscaled as far as possible for the target size.
+     *
+     * @param target image that may be reused for the decoded image, or null.
+     * @return the decoded image or null if there is no decoder for the image.
+     */
+    public T decode(File file, int targetWidth, int targetHeight, T target) throws IOException {
+        return decode(readHeader(file), file, targetWidth, targetHeight, target);
+    }
+
+    /**
+     * Decode an image that has been received into a file and whose header has been read already.
+     *
+     * @param target image that may be reused for the decoded image, or null.
+     * @return the decoded image or null if there is no decoder for the image.
+     */
+    public T decode(ImageHeader header, File file, int targetWidth, int targetHeight, T target)
+            throws IOException {
+        FrameDecoder<T> decoder = select(header);
+        if (decoder == null) {
+            mEventLog.record(EventLog.Event.DECODER_MISSING, header.format);
+            return null;
+        }
+        int sampleSize = decoder.getSampleSize(header, targetWidth, targetHeight);
+        mEventLog.record(EventLog.Event.DECODE_SAMPLE_SIZE, sampleSize);
+        return decoder.decode(file, sampleSize, target);
+    }
+
+    /**
+     * Read the header of an image from the beginning of a file.
+     */
+    public ImageHeader readHeader(File file) throws IOException {
+        if (mHeaderBuffer == null) {
+            mHeaderBuffer = new byte[ImageHeader.HEADER_LENGTH];
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int length = 0;
+            while (length < mHeaderBuffer.length) {
+                int nbytes = inputStream.read(mHeaderBuffer, length, mHeaderBuffer.length - length);
+                if (nbytes == -1) {
+                    break;
+                }
+                length += nbytes;
+            }
+            return ImageHeader.parse(mHeaderBuffer, length);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+/**
+ * Merges the images of several sources into a single queue for display.
+ *
+ * The queue holds at most one image per source: a newer image of a source replaces
+ * an older one that has not been displayed yet (latest wins). Sources with a pending
+ * image are served in round-robin order, so that a busy booth cannot starve the others.
+ *
+ * With a dwell time, the image of a source is shown at least that long before the image
+ * of another source replaces it. In the meantime, newer images of the same source are
+ * taken right away, so the dwell time never delays an image of the source that is shown.
+ *
+ * The queue owns a reference to every pending image: it releases the images that it
+ * drops, and hands the reference over with each entry that is taken.
+ */
+public class DisplayQueue {
+
+    /**
+     * An image together with the index of the source that sent it.
+     * Whoever takes the entry has to release the image.
+     */
+    public static class Entry {
+        public final int source;
+        public final ImageBuffer image;
+
+        Entry(int source, ImageBuffer image) {
+            this.source = source;
+            this.image = image;
+        }
+    }
+
+    private final ImageBuffer[] mPending;
+    private final long mDwellMillis;
+    /** Index of the source that is considered first by the next call to take(). */
+    private int mNextSource;
+    /** Source of the image that has been taken last, or -1. */
+    private int mCurrentSource = -1;
+    /** Time of System.nanoTime() in milliseconds from which on another source may be taken. */
+    private long mSwitchAllowedAtMillis;
+    private int mCoalesced;
+    private boolean mClosed;
+
+    public DisplayQueue(int numSources) {
+        this(numSources, 0);
+    }
+
+    /**
+     * @param dwellMillis minimum time that the image of a source is shown
+     * before an image of another source is taken.
+     */
+    public DisplayQueue(int numSources, long dwellMillis) {
+        mPending = new ImageBuffer[numSources];
+        mDwellMillis = dwellMillis;
+    }
+
+    /**
+     * Queue an image of the given source, replacing any pending image of that source.
+     * The queue takes over the reference of the caller to the image.
+     */
+    public synchronized void offer(int source, ImageBuffer image) {
+        if (mClosed) {
+            image.release();
+            return;
+        }
+        if (mPending[source] != null) {
+            mCoalesced++;
+            mPending[source].release();
+        }
+        mPending[source] = image;
+        notifyAll();
+    }
+
+    /**
+     * Wait for the next image.
+     * @return the next image or null if the queue has been closed.
+     */
+    public synchronized Entry take() throws InterruptedException {
+        while (!mClosed) {
+            long dwellMillis = mSwitchAllowedAtMillis - System.nanoTime() / 1000000;
+            if (dwellMillis > 0) {
+                if (mPending[mCurrentSource] != null) {
+                    return remove(mCurrentSource);
+                }
+            } else {
+                for (int i = 0; i < mPending.length; ++i) {
+                    int source = (mNextSource + i) % mPending.length;
+                    if (mPending[source] != null) {
+                        return remove(source);
+                    }
+                }
+            }
+            // Wait for an image, or for the end of the dwell time if an image is waiting for it.
+            wait(hasPending() && dwellMillis > 0 ? dwellMillis : 0);
+        }
+        return null;
+    }
+
+    private boolean hasPending() {
+        for (ImageBuffer image : mPending) {
+            if (image != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Entry remove(int source) {
+        ImageBuffer image = mPending[source];
+        mPending[source] = null;
+        mNextSource = (source + 1) % mPending.length;
+        if (source != mCurrentSource) {
+            mCurrentSource = source;
+            mSwitchAllowedAtMillis = System.nanoTime() / 1000000 + mDwellMillis;
+        }
+        return new Entry(source, image);
+    }
+
+    /**
+     * @return the number of images that have been replaced by a newer image of the same source.
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * Drop all pending images and wake up all threads that are waiting in take().
+     */
+    public synchronized void close() {
+        mClosed = true;
+        for (int i = 0; i < mPending.length; ++i) {
+            if (mPending[i] != null) {
+                mPending[i].release();
+                mPending[i] = null;
+            }
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * A low-overhead recorder for the events of the receive path.
+ *
+ * Events are stored in a preallocated ring buffer as a type, a monotonic timestamp
+ * and a numeric argument. Recording an event does not allocate and does not format
+ * any strings. The human-readable messages are only built when the log is dumped,
+ * or when an event is at or above the logcat level, which is WARN by default.
+ *
+ * Events below the recording level are dropped immediately. Both levels can be changed
+ * at runtime. Repeated warnings and errors of the same type are rate-limited: while an
+ * event is suppressed it is only counted, and the count is reported with the next
+ * occurrence that is recorded.
+ */
+public class EventLog {
+    private static final String CLASS_NAME = "EventLog";
+
+    /** Number of events that the ring buffer holds. */
+    private static final int CAPACITY = 1024;
+    /** Warnings and errors of the same type are recorded at most once per interval. */
+    private static final long RATE_LIMIT_NANOS = 1000L * 1000L * 1000L;
+
+    /**
+     * All events that can be recorded. The level of an event uses the
+     * priority constants of android.util.Log.
+     */
+    public enum Event {
+        CONNECTING(Log.DEBUG, "Connecting to the image server"),
+        CONNECT_FAILED(Log.ERROR, "Could not connect to the image server"),
+        CONNECTION_ERROR(Log.ERROR, "Connection error"),
+        COMMAND_TAKEN(Log.DEBUG, "An image has been taken"),
+        COMMAND_DATA(Log.DEBUG, "Image data will be transferred"),
+        INVALID_COMMAND(Log.ERROR, "Received invalid command %d"),
+        EOF_COMMAND(Log.ERROR, "Socket was closed while reading the next command"),
+        EOF_IMAGE_SIZE(Log.ERROR, "Socket was closed while reading the size of the next image"),
+        IMAGE_RECEIVING(Log.DEBUG, "Receiving an image of size %d"),
+        IMAGE_RECEIVED(Log.DEBUG, "Received an image of size %d"),
+        IMAGE_FILE_RECEIVING(Log.DEBUG, "Receiving an image of size %d into a file"),
+        IMAGE_FILE_RECEIVED(Log.DEBUG, "Received an image of size %d into a file"),
+        IMAGE_FILE_DELETE_FAILED(Log.WARN, "Could not delete an incomplete image file"),
+        EOF_IMAGE_DATA(Log.ERROR, "Socket was closed while reading image data"),
+        RECEIVER_FINISHED(Log.DEBUG, "Image receiver finished"),
+        HEARTBEAT_CONNECTING(Log.DEBUG, "Connecting to the heartbeat server"),
+        HEARTBEAT_CONNECT_FAILED(Log.ERROR, "Could not connect to the heartbeat server"),
+        HEARTBEAT_RECEIVING(Log.DEBUG, "Starting to receive heartbeat"),
+        HEARTBEAT_EMPTY_READ(Log.ERROR, "Could not read from the heartbeat channel"),
+        HEARTBEAT_EOF(Log.ERROR, "Received EOF on the heartbeat channel"),
+        HEARTBEAT_ERROR(Log.ERROR, "Heartbeat error"),
+        HEARTBEAT_FINISHED(Log.DEBUG, "Heartbeat receiver finished"),
+        CAPTURE_ERROR(Log.ERROR, "Could not write the traffic capture"),
+        SOURCE_CONNECTING(Log.DEBUG, "Connecting to source %d"),
+        SOURCE_CONNECTED(Log.INFO, "Connected to source %d"),
+        SOURCE_DISCONNECTED(Log.INFO, "Disconnected from source %d"),
+        SOURCE_ERROR(Log.ERROR, "Connection error on source %d"),
+        RELAY_CLIENT_CONNECTED(Log.INFO, "A screen connected to the relay, %d screens connected"),
+        RELAY_CLIENT_DISCONNECTED(Log.INFO, "A screen disconnected from the relay, %d screens connected"),
+        RELAY_FRAME_DROPPED(Log.WARN, "Dropped a frame for a slow screen"),
+        RELAY_ERROR(Log.ERROR, "Relay error"),
+        RELAY_FINISHED(Log.DEBUG, "Relay finished"),
+        MULTICAST_JOINED(Log.INFO, "Joined the multicast group"),
+        MULTICAST_IMAGE_SENT(Log.DEBUG, "Sent an image of size %d via multicast"),
+        MULTICAST_IMAGE_RECEIVED(Log.DEBUG, "Received an image of size %d via multicast"),
+        MULTICAST_FEC_RECOVERED(Log.INFO, "Recovered %d chunks from parity"),
+        MULTICAST_FALLBACK(Log.INFO, "Fetched %d missing bytes via the TCP fallback"),
+        MULTICAST_IMAGE_LOST(Log.WARN, "Dropped an incomplete image with %d missing ranges"),
+        MULTICAST_INVALID_PACKET(Log.WARN, "Dropped a malformed multicast datagram of %d bytes"),
+        MULTICAST_ERROR(Log.ERROR, "Multicast error"),
+        RANGE_SERVED(Log.DEBUG, "Served a range of %d bytes"),
+        RANGE_ERROR(Log.ERROR, "Range server error"),
+        WARMUP_RECEIVE_BUFFER(Log.DEBUG, "Reserved a receive array ahead of the image data in %d us"),
+        RECEIVE_BUFFER_OVER_BUDGET(Log.WARN, "Received an image of size %d without pooling, over the memory budget"),
+        DECODE_OVER_BUDGET(Log.WARN, "Skipped a bitmap of %d bytes that would exceed the memory budget"),
+        WARMUP_BITMAP(Log.DEBUG, "Allocated a bitmap ahead of the image data in %d us"),
+        IMAGE_DISPLAYED(Log.DEBUG, "Displayed an image %d us after its data had been received"),
+        TASK_FAILED(Log.ERROR, "A transport task failed"),
+        TRANSPORT_SHUTDOWN(Log.DEBUG, "All transport tasks finished within %d ms"),
+        TRANSPORT_SHUTDOWN_TIMEOUT(Log.ERROR, "%d transport tasks did not finish before the deadline"),
+        DECODER_MISSING(Log.ERROR, "No decoder for an image of format %d"),
+        DECODE_SAMPLE_SIZE(Log.DEBUG, "Decoding an image with sample size %d"),
+        IMAGE_DECODED(Log.DEBUG, "Decoded an image in %d us"),
+        FRAME_PROCESSED(Log.DEBUG, "Processed a decoded image into a frame in %d us"),
+        TRANSPORT_TUNED(Log.INFO, "Tuned the receive buffer to %d bytes");
+
+        final int level;
+        final String format;
+
+        Event(int level, String format) {
+            this.level = level;
+            this.format = format;
+        }
+
+        String describe(long arg) {
+            return format.contains("%") ? String.format(format, arg) : format;
+        }
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    private static final EventLog sInstance = new EventLog(CAPACITY);
+
+    private final long[] mTimestamps;
+    private final int[] mEvents;
+    private final long[] mArgs;
+    private final int[] mSuppressed;
+    /** Total number of events that have been recorded. The next slot is mCount % capacity. */
+    private long mCount;
+
+    private final long[] mLastRecorded = new long[EVENTS.length];
+    private final int[] mSuppressedSince = new int[EVENTS.length];
+
+    private volatile int mLevel = Log.DEBUG;
+    private volatile int mLogcatLevel = Log.WARN;
+
+    /**
+     * @return the event log that is shared by all receivers of the app.
+     */
+    public static EventLog get() {
+        return sInstance;
+    }
+
+    EventLog(int capacity) {
+        mTimestamps = new long[capacity];
+        mEvents = new int[capacity];
+        mArgs = new long[capacity];
+        mSuppressed = new int[capacity];
+    }
+
+    /**
+     * Events below this level are dropped.
+     * @param level one of the priority constants of android.util.Log.
+     */
+    public void setLevel(int level) {
+        mLevel = level;
+    }
+
+    /**
+     * Events at or above this level are additionally forwarded to logcat.
+     * @param level one of the priority constants of android.util.Log.
+     */
+    public void setLogcatLevel(int level) {
+        mLogcatLevel = level;
+    }
+
+    public void record(Event event) {
+        record(event, 0, null);
+    }
+
+    public void record(Event event, long arg) {
+        record(event, arg, null);
+    }
+
+    /**
+     * Record an event that was caused by an exception.
+     * The exception is not stored in the ring buffer, it is only forwarded to logcat.
+     */
+    public void record(Event event, Throwable throwable) {
+        record(event, 0, throwable);
+    }
+
+    /**
+     * Record an event with an argument that was caused by an exception.
+     * The exception is not stored in the ring buffer, it is only forwarded to logcat.
+     */
+    public void record(Event event, long arg, Throwable throwable) {
+        if (event.level < mLevel) {
+            return;
+        }
+        long now = System.nanoTime();
+        int suppressed;
+        synchronized (this) {
+            int ordinal = event.ordinal();
+            if (event.level >= Log.WARN) {
+                if (mLastRecorded[ordinal] != 0 && now - mLastRecorded[ordinal] < RATE_LIMIT_NANOS) {
+                    mSuppressedSince[ordinal]++;
+                    return;
+                }
+                mLastRecorded[ordinal] = now;
+            }
+            suppressed = mSuppressedSince[ordinal];
+            mSuppressedSince[ordinal] = 0;
+
+            int slot = (int) (mCount % mTimestamps.length);
+            mTimestamps[slot] = now;
+            mEvents[slot] = ordinal;
+            mArgs[slot] = arg;
+            mSuppressed[slot] = suppressed;
+            mCount++;
+        }
+        if (event.level >= mLogcatLevel) {
+            String message = describe(event, arg, suppressed);
+            if (throwable != null) {
+                message += '\n' + Log.getStackTraceString(throwable);
+            }
+            Log.println(event.level, CLASS_NAME, message);
+        }
+    }
+
+    private static String describe(Event event, long arg, int suppressed) {
+        String message = event.describe(arg);
+        if (suppressed > 0) {
+            message += String.format(" (%d similar events suppressed)", suppressed);
+        }
+        return message;
+    }
+
+    /**
+     * Write all events in the ring buffer to the writer, oldest first.
+     * Timestamps are printed in milliseconds relative to the newest event.
+     */
+    public void dump(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        synchronized (this) {
+            int capacity = mTimestamps.length;
+            long first = Math.max(0, mCount - capacity);
+            long newest = mCount == 0 ? 0 : mTimestamps[(int) ((mCount - 1) % capacity)];
+            out.printf("%d events recorded, showing the last %d%n", mCount, mCount - first);
+            for (long i = first; i < mCount; ++i) {
+                int slot = (int) (i % capacity);
+                Event event = EVENTS[mEvents[slot]];
+                out.printf("%10.3f %-24s %s%n",
+                        (mTimestamps[slot] - newest) / 1e6,
+                        event.name(),
+                        describe(event, mArgs[slot], mSuppressed[slot]));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Write all events in the ring buffer to a file, see dump().
+     */
+    public void dumpToFile(File file) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+}
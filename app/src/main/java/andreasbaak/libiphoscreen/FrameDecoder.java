@@ -0,0 +1,66 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes encoded images into images of type T, e.g. Bitmap.
+ *
+ * A decoder handles one or more formats, see ImageHeader, and decides by how much it
+ * downscales an image while decoding, so that the decoded image is not larger than
+ * necessary for the target size. The decoder for a frame is chosen by a DecoderRegistry.
+ *
+ * Decoders that do not depend on Android can be used to test and benchmark the decode
+ * path on the JVM.
+ */
+public interface FrameDecoder<T> {
+    /**
+     * @return whether the decoder can decode images of the given format.
+     */
+    boolean supports(int format);
+
+    /**
+     * @return the factor by which the image is downscaled while decoding.
+     * The decoded image covers the target size whenever the image itself does.
+     */
+    int getSampleSize(ImageHeader header, int targetWidth, int targetHeight);
+
+    /**
+     * Decode an image that has been received into memory.
+     *
+     * @param target image that may be reused for the decoded image, or null.
+     * The decoder owns the target afterwards.
+     * @return the decoded image, or null if the data could not be decoded.
+     */
+    T decode(byte[] data, int length, int sampleSize, T target);
+
+    /**
+     * Decode an image that has been received into a file, see ImageReceiver.setSpillToFile().
+     *
+     * @param target image that may be reused for the decoded image, or null.
+     * The decoder owns the target afterwards.
+     * @return the decoded image, or null if the data could not be decoded.
+     */
+    T decode(File file, int sampleSize, T target) throws IOException;
+}
@@ -0,0 +1,216 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The single owner of the current frame, i.e. the most recently decoded image.
+ *
+ * The decode thread publishes each new frame with publish(), which never blocks.
+ * Everybody else who uses the bitmap of the current frame, such as the image view,
+ * the saved instance state or a cache, acquires a lease and releases it as soon as
+ * the bitmap is not used anymore. A frame is reference-counted: the holder keeps one
+ * reference as long as the frame is current, and every lease keeps another one.
+ * When the last reference is gone, the bitmap is handed to the Recycler, or recycled
+ * if there is none. Hence a bitmap is never recycled while it is in use, and it is
+ * recycled as soon as it is not in use anymore.
+ *
+ * The holder accounts for the current frame in a MemoryBudget. When the budget trims it,
+ * the current frame is dropped and the TrimListener is notified, so that the users of the
+ * frame can release their leases.
+ *
+ * All methods are thread-safe and lock-free.
+ */
+public class FrameHolder implements MemoryBudget.Owner {
+
+    /**
+     * Takes care of bitmaps that are not used anymore, e.g. by reusing them for decoding.
+     * The recycler is the new owner of the bitmap and has to recycle it eventually.
+     */
+    public interface Recycler {
+        void recycle(Bitmap bitmap);
+    }
+
+    /**
+     * Notified after the current frame has been dropped by trimMemory().
+     * It is called on the thread that trims the memory.
+     */
+    public interface TrimListener {
+        void onFrameTrimmed();
+    }
+
+    /**
+     * A reference-counted frame. The count starts with the reference of the holder.
+     */
+    private static final class Frame {
+        final Bitmap bitmap;
+        /** Taken on creation, since a recycled bitmap does not report its size anymore. */
+        final int byteCount;
+        final AtomicInteger references = new AtomicInteger(1);
+
+        Frame(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            this.byteCount = bitmap.getByteCount();
+        }
+
+        /**
+         * Add a reference unless the frame has been released already.
+         */
+        boolean tryRetain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Grants access to the bitmap of a frame until release() is called.
+     */
+    public final class Lease {
+        private final Frame mFrame;
+        private final AtomicBoolean mReleased = new AtomicBoolean();
+
+        private Lease(Frame frame) {
+            mFrame = frame;
+        }
+
+        /**
+         * @return the bitmap of the frame. Must not be used after release().
+         */
+        public Bitmap getBitmap() {
+            if (mReleased.get()) {
+                throw new IllegalStateException("The lease has been released.");
+            }
+            return mFrame.bitmap;
+        }
+
+        /**
+         * Give up the access to the bitmap. Further calls have no effect.
+         */
+        public void release() {
+            if (mReleased.compareAndSet(false, true)) {
+                FrameHolder.this.release(mFrame);
+            }
+        }
+    }
+
+    private final AtomicReference<Frame> mCurrent = new AtomicReference<>();
+    private volatile Recycler mRecycler;
+    private volatile TrimListener mTrimListener;
+
+    /**
+     * Set the recycler for bitmaps that are not used anymore, or null to recycle them.
+     */
+    public void setRecycler(Recycler recycler) {
+        mRecycler = recycler;
+    }
+
+    /**
+     * Set the listener that is notified when the current frame is trimmed, or null.
+     */
+    public void setTrimListener(TrimListener listener) {
+        mTrimListener = listener;
+    }
+
+    /**
+     * Make the given bitmap the current frame. The holder takes ownership of the bitmap.
+     * The previous frame is recycled as soon as its last lease has been released.
+     *
+     * @param bitmap the new frame, or null to clear the current frame.
+     */
+    public void publish(Bitmap bitmap) {
+        Frame previous = mCurrent.getAndSet(bitmap == null ? null : new Frame(bitmap));
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    /**
+     * Drop the current frame.
+     */
+    public void clear() {
+        publish(null);
+    }
+
+    /**
+     * Obtain access to the current frame.
+     * @return a lease on the current frame, or null if there is none.
+     */
+    public Lease acquire() {
+        while (true) {
+            Frame frame = mCurrent.get();
+            if (frame == null) {
+                return null;
+            }
+            if (frame.tryRetain()) {
+                return new Lease(frame);
+            }
+            // The frame has been replaced and released in the meantime, try the new one.
+        }
+    }
+
+    private void release(Frame frame) {
+        if (frame.references.decrementAndGet() == 0) {
+            Recycler recycler = mRecycler;
+            if (recycler != null) {
+                recycler.recycle(frame.bitmap);
+            } else {
+                frame.bitmap.recycle();
+            }
+        }
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        Frame frame = mCurrent.get();
+        return frame == null ? 0 : frame.byteCount;
+    }
+
+    @Override
+    public int getTrimPriority() {
+        return MemoryBudget.PRIORITY_DISPLAY;
+    }
+
+    /**
+     * Drop the current frame. This only happens if the process is about to be killed.
+     * Bitmaps that are still leased, e.g. by the image view, stay alive until released.
+     */
+    @Override
+    public void trimMemory() {
+        clear();
+        TrimListener listener = mTrimListener;
+        if (listener != null) {
+            listener.onFrameTrimmed();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Takes received images from the receiver to the FrameHolder: each image is decoded and
+ * processed on the DecodeWorker, published as the current frame, and then announced to
+ * the listener, which shows it.
+ *
+ * The pipeline uses the gap between TAKEN and DATA to warm up the decoder, see
+ * DecodeWorker.warmUp(). It does not touch any views, so it runs unchanged in tests.
+ */
+class FramePipeline {
+    private static final String CLASS_NAME = "FramePipeline";
+
+    /**
+     * Notified on the decode thread after an image has been decoded and published.
+     */
+    interface Listener {
+        /**
+         * @param published false if the image could not be decoded, in which case
+         * the previous frame is still the current one.
+         * @param receivedAt System.nanoTime() at which the image had been received.
+         */
+        void onFrameReady(boolean published, long receivedAt);
+    }
+
+    private final DecodeWorker mDecodeWorker;
+    private final FrameHolder mFrameHolder;
+    private final Listener mListener;
+    private volatile boolean mWarmUp = true;
+
+    FramePipeline(DecodeWorker decodeWorker, FrameHolder frameHolder, Listener listener) {
+        mDecodeWorker = decodeWorker;
+        mFrameHolder = frameHolder;
+        mListener = listener;
+    }
+
+    /**
+     * Enable or disable the warm-up on TAKEN. It is enabled by default.
+     */
+    void setWarmUp(boolean warmUp) {
+        mWarmUp = warmUp;
+    }
+
+    /**
+     * An image has been taken, its data will arrive shortly.
+     */
+    void onImageTaken() {
+        if (mWarmUp) {
+            mDecodeWorker.warmUp();
+        }
+    }
+
+    /**
+     * Decode and publish an image. The image is retained until it has been decoded.
+     */
+    void submit(final ImageBuffer image) {
+        final long receivedAt = System.nanoTime();
+        image.retain();
+        mDecodeWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap;
+                try {
+                    bitmap = mDecodeWorker.decode(image.getData(), image.getLength());
+                } finally {
+                    image.release();
+                }
+                publish(bitmap, receivedAt);
+            }
+        });
+    }
+
+    /**
+     * Decode and publish an image file, which is deleted afterwards.
+     */
+    void submit(final File imageFile) {
+        final long receivedAt = System.nanoTime();
+        mDecodeWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = mDecodeWorker.decode(imageFile);
+                } catch (IOException e) {
+                    Log.e(CLASS_NAME, "Could not decode image file " + imageFile, e);
+                }
+                if (!imageFile.delete()) {
+                    Log.e(CLASS_NAME, "Could not delete image file " + imageFile);
+                }
+                publish(bitmap, receivedAt);
+            }
+        });
+    }
+
+    private void publish(Bitmap bitmap, long receivedAt) {
+        if (bitmap != null) {
+            mFrameHolder.publish(bitmap);
+        }
+        mListener.onFrameReady(bitmap != null, receivedAt);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+/**
+ * Brings a decoded image into the form in which it is displayed: rotated according to
+ * its EXIF orientation, cropped to the aspect ratio of the mask, scaled to the size of
+ * the image view and optionally color adjusted.
+ *
+ * All of this happens in a single draw call into an output bitmap, see FrameTransform.
+ * Since the output has exactly the size of the view, the view neither scales nor rotates
+ * the frame when it is drawn.
+ *
+ * process() must only be called on the decode thread, the setters may be called on any thread.
+ */
+class FrameProcessor {
+    private volatile float mAspectRatio;
+    private volatile ColorMatrix mColorMatrix;
+
+    /** Only used on the decode thread. */
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mMatrix = new Matrix();
+    private final float[] mValues = new float[9];
+    private ColorMatrix mAppliedColorMatrix;
+
+    /**
+     * Crop frames around their center to the given ratio of width to height,
+     * or keep the whole image if the ratio is 0.
+     */
+    void setAspectRatio(float aspectRatio) {
+        mAspectRatio = aspectRatio;
+    }
+
+    /**
+     * Apply the given color matrix to all subsequent frames, or no color adjustment if null.
+     * The matrix must not be modified afterwards.
+     */
+    void setColorMatrix(ColorMatrix colorMatrix) {
+        mColorMatrix = colorMatrix;
+    }
+
+    FrameTransform computeTransform(Bitmap decoded, int orientation, int targetWidth, int targetHeight) {
+        return FrameTransform.compute(decoded.getWidth(), decoded.getHeight(), orientation,
+                mAspectRatio, targetWidth, targetHeight);
+    }
+
+    /**
+     * @return whether the decoded image has to be processed or can be displayed as it is.
+     */
+    boolean isRequired(FrameTransform transform) {
+        return !transform.isIdentity() || mColorMatrix != null;
+    }
+
+    /**
+     * Draw the decoded image into the output bitmap, which has to be mutable and
+     * of the output size of the transform.
+     */
+    void process(Bitmap decoded, FrameTransform transform, Bitmap output) {
+        ColorMatrix colorMatrix = mColorMatrix;
+        if (colorMatrix != mAppliedColorMatrix) {
+            mPaint.setColorFilter(colorMatrix == null ? null : new ColorMatrixColorFilter(colorMatrix));
+            mAppliedColorMatrix = colorMatrix;
+        }
+        transform.getValues(mValues);
+        mMatrix.setValues(mValues);
+        if (decoded.hasAlpha()) {
+            // A reused output still contains the previous frame.
+            output.eraseColor(Color.TRANSPARENT);
+        }
+        mCanvas.setBitmap(output);
+        try {
+            mCanvas.drawBitmap(decoded, mMatrix, mPaint);
+        } finally {
+            mCanvas.setBitmap(null);
+        }
+    }
+}
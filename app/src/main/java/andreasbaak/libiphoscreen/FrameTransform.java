@@ -0,0 +1,148 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+/**
+ * Geometry of the processing stage: maps a decoded image onto the frame that is displayed.
+ *
+ * The decoded image is first brought into its EXIF orientation, then cropped around its
+ * center to the aspect ratio of the frame and finally scaled to fit the target size.
+ * All three steps are combined into a single affine transformation, so that the pixels
+ * of the decoded image are only touched once.
+ *
+ * The values are in the order of android.graphics.Matrix, but this class is plain Java
+ * so that the geometry can be tested without a device.
+ */
+final class FrameTransform {
+    private static final float EPSILON = 1e-4f;
+
+    /** Size of the processed frame in pixels. */
+    final int outputWidth;
+    final int outputHeight;
+    /** The 3x3 matrix from decoded to processed pixel coordinates, row by row. */
+    private final float[] mValues;
+
+    private FrameTransform(int outputWidth, int outputHeight, float[] values) {
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+        mValues = values;
+    }
+
+    /**
+     * @param width width of the decoded image in pixels.
+     * @param height height of the decoded image in pixels.
+     * @param orientation EXIF orientation of the image, see ImageHeader.
+     * @param aspectRatio width divided by height of the frame, or 0 to keep the whole image.
+     * @param targetWidth width of the area the frame is displayed in, or 0 to keep the size.
+     * @param targetHeight height of the area the frame is displayed in, or 0 to keep the size.
+     */
+    static FrameTransform compute(int width, int height, int orientation, float aspectRatio,
+                                  int targetWidth, int targetHeight) {
+        // Orientation: x' = a * x + b * y + c, y' = d * x + e * y + f.
+        float a = 1, b = 0, c = 0, d = 0, e = 1, f = 0;
+        switch (orientation) {
+            case ImageHeader.ORIENTATION_FLIP_HORIZONTAL:
+                a = -1; c = width;
+                break;
+            case ImageHeader.ORIENTATION_ROTATE_180:
+                a = -1; c = width; e = -1; f = height;
+                break;
+            case ImageHeader.ORIENTATION_FLIP_VERTICAL:
+                e = -1; f = height;
+                break;
+            case ImageHeader.ORIENTATION_TRANSPOSE:
+                a = 0; b = 1; d = 1; e = 0;
+                break;
+            case ImageHeader.ORIENTATION_ROTATE_90:
+                a = 0; b = -1; c = height; d = 1; e = 0;
+                break;
+            case ImageHeader.ORIENTATION_TRANSVERSE:
+                a = 0; b = -1; c = height; d = -1; e = 0; f = width;
+                break;
+            case ImageHeader.ORIENTATION_ROTATE_270:
+                a = 0; b = 1; d = -1; e = 0; f = width;
+                break;
+            default:
+                break;
+        }
+        boolean transposed = orientation >= ImageHeader.ORIENTATION_TRANSPOSE
+                && orientation <= ImageHeader.ORIENTATION_ROTATE_270;
+        float orientedWidth = transposed ? height : width;
+        float orientedHeight = transposed ? width : height;
+
+        float cropWidth = orientedWidth;
+        float cropHeight = orientedHeight;
+        if (aspectRatio > 0) {
+            if (orientedWidth / orientedHeight > aspectRatio) {
+                cropWidth = orientedHeight * aspectRatio;
+            } else {
+                cropHeight = orientedWidth / aspectRatio;
+            }
+        }
+        float cropLeft = (orientedWidth - cropWidth) / 2;
+        float cropTop = (orientedHeight - cropHeight) / 2;
+
+        float scale = 1;
+        if (targetWidth > 0 && targetHeight > 0) {
+            scale = Math.min(targetWidth / cropWidth, targetHeight / cropHeight);
+        }
+        int outputWidth = Math.max(1, Math.round(cropWidth * scale));
+        int outputHeight = Math.max(1, Math.round(cropHeight * scale));
+        // Fill the output exactly, even if rounding changed its aspect ratio slightly.
+        float scaleX = outputWidth / cropWidth;
+        float scaleY = outputHeight / cropHeight;
+
+        return new FrameTransform(outputWidth, outputHeight, new float[] {
+                scaleX * a, scaleX * b, scaleX * (c - cropLeft),
+                scaleY * d, scaleY * e, scaleY * (f - cropTop),
+                0, 0, 1});
+    }
+
+    /**
+     * @return whether the processed frame would be identical to the decoded image.
+     */
+    boolean isIdentity() {
+        return Math.abs(mValues[0] - 1) < EPSILON && Math.abs(mValues[1]) < EPSILON
+                && Math.abs(mValues[2]) < EPSILON && Math.abs(mValues[3]) < EPSILON
+                && Math.abs(mValues[4] - 1) < EPSILON && Math.abs(mValues[5]) < EPSILON;
+    }
+
+    /**
+     * Copy the matrix into an array of nine values, suitable for Matrix.setValues().
+     */
+    void getValues(float[] values) {
+        System.arraycopy(mValues, 0, values, 0, mValues.length);
+    }
+
+    float mapX(float x, float y) {
+        return mValues[0] * x + mValues[1] * y + mValues[2];
+    }
+
+    float mapY(float x, float y) {
+        return mValues[3] * x + mValues[4] * y + mValues[5];
+    }
+
+    @Override
+    public String toString() {
+        return outputWidth + "x" + outputHeight;
+    }
+}
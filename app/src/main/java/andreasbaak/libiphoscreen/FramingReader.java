@@ -0,0 +1,148 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Reads the frames of the image protocol from a blocking channel with as few system
+ * calls as possible.
+ *
+ * Small reads such as the command byte and the image size are served from a read-ahead
+ * buffer, so that a single read usually returns the command, the size and the beginning
+ * of the image data. The image data itself is read with a scattering read into the image
+ * buffer and the read-ahead buffer: the image buffer is limited to the size of the image,
+ * so the bytes of the next frame that arrive together with the end of the image go into
+ * the read-ahead buffer instead of requiring another read.
+ *
+ * Without a read-ahead buffer, every frame is read separately like before.
+ */
+class FramingReader {
+    private final ScatteringByteChannel mChannel;
+    /** Bytes that have been read but not consumed yet, between position and limit. */
+    private final ByteBuffer mReadAhead;
+    private final ByteBuffer[] mScatter = new ByteBuffer[2];
+    private long mReadCount;
+
+    /**
+     * @param readAheadSize size of the read-ahead buffer, or 0 to read without one.
+     * @param direct whether the read-ahead buffer is allocated outside of the Java heap.
+     * It is small and lives as long as the connection, so it is not part of any MemoryBudget.
+     */
+    FramingReader(ScatteringByteChannel channel, int readAheadSize, boolean direct) {
+        mChannel = channel;
+        if (readAheadSize > 0) {
+            mReadAhead = direct ? ByteBuffer.allocateDirect(readAheadSize) : ByteBuffer.allocate(readAheadSize);
+            mReadAhead.limit(0);
+            mScatter[1] = mReadAhead;
+        } else {
+            mReadAhead = null;
+        }
+    }
+
+    /**
+     * Fill the remaining bytes of the buffer.
+     *
+     * @return false if the channel reached its end before the buffer was full.
+     */
+    boolean readFully(ByteBuffer buffer) throws IOException {
+        takeReadAhead(buffer);
+        while (buffer.hasRemaining()) {
+            long nbytes;
+            if (mReadAhead == null) {
+                nbytes = mChannel.read(buffer);
+            } else if (buffer.remaining() < mReadAhead.capacity()) {
+                // Small reads go through the read-ahead buffer.
+                mReadAhead.clear();
+                nbytes = mChannel.read(mReadAhead);
+                mReadAhead.flip();
+                takeReadAhead(buffer);
+            } else {
+                mReadAhead.clear();
+                mScatter[0] = buffer;
+                try {
+                    nbytes = mChannel.read(mScatter);
+                } finally {
+                    mScatter[0] = null;
+                    mReadAhead.flip();
+                }
+            }
+            if (nbytes == -1) {
+                return false;
+            }
+            ++mReadCount;
+        }
+        return true;
+    }
+
+    /**
+     * Write the next count bytes of the channel into a file, starting at the given position.
+     * The data is transferred by the kernel as far as it has not been read ahead already.
+     *
+     * @return false if the channel reached its end before count bytes were transferred.
+     */
+    boolean transferTo(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        if (mReadAhead != null && mReadAhead.hasRemaining()) {
+            int limit = mReadAhead.limit();
+            mReadAhead.limit(mReadAhead.position() + (int) Math.min(mReadAhead.remaining(), count));
+            try {
+                while (mReadAhead.hasRemaining()) {
+                    position += file.write(mReadAhead, position);
+                }
+            } finally {
+                mReadAhead.limit(limit);
+            }
+        }
+        while (position < end) {
+            // The channel is blocking, hence transferFrom only returns 0 bytes on EOF.
+            long nbytes = file.transferFrom(mChannel, position, end - position);
+            if (nbytes <= 0) {
+                return false;
+            }
+            position += nbytes;
+            ++mReadCount;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of reads from the channel so far.
+     */
+    long getReadCount() {
+        return mReadCount;
+    }
+
+    private void takeReadAhead(ByteBuffer buffer) {
+        if (mReadAhead == null || !mReadAhead.hasRemaining()) {
+            return;
+        }
+        int length = Math.min(mReadAhead.remaining(), buffer.remaining());
+        int limit = mReadAhead.limit();
+        mReadAhead.limit(mReadAhead.position() + length);
+        buffer.put(mReadAhead);
+        mReadAhead.limit(limit);
+    }
+}
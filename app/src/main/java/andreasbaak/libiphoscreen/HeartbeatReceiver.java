@@ -21,13 +21,9 @@ along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
 
 package andreasbaak.libiphoscreen;
 
-import android.os.AsyncTask;
-import android.util.Log;
-
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
@@ -43,88 +39,92 @@ import java.nio.channels.SocketChannel;
  *
  * This class really does not do anything else than ignoring all incoming TCP packets.
  *
- * The class is implemented as an AsyncTask in order to easily run in the background.
- * The HeartbeatReceiver is interruptible. As soon as the class is interrupted via the
- * cancel() method, the background thread ends.
+ * The class is implemented as a TransportTask in order to easily run in the background.
+ * As soon as the task is cancelled via the cancel() method, the background thread ends.
  */
-public class HeartbeatReceiver extends AsyncTask<Void, Void, Void> {
-    private static final String CLASS_NAME = "HeartbeatReceiver";
+public class HeartbeatReceiver extends TransportTask {
+    private static final long RETRY_DELAY_MILLIS = 500;
+
+    private final EventLog mEventLog = EventLog.get();
     private final String mServerIp;
     private final int mServerPort;
+    private TrafficCapture mCapture;
 
     /**
      * Create a new receiver.
-     * The receiver has to be started with receiver.execute(..) and its variants,
-     * see AsyncTask for details.
+     * The receiver has to be started with TransportExecutor.execute().
      *
      * @param serverIp IP address or hostname of the server that we connect to
      * @param serverPort TCP port of the server that we connect to
      */
     HeartbeatReceiver(String serverIp, int serverPort) {
+        super("HeartbeatReceiver", PRIORITY_BACKGROUND);
         mServerIp = serverIp;
         mServerPort = serverPort;
     }
 
+    /**
+     * Record everything that is received on the heartbeat channel into the given capture.
+     * Has to be called before the receiver is started.
+     */
+    public void setTrafficCapture(TrafficCapture capture) {
+        mCapture = capture;
+    }
+
     @Override
-    protected Void doInBackground(Void... params) {
-        SocketChannel socketChannel = null;
+    protected void runTask() {
         while (!isCancelled()) {
+            SocketChannel socketChannel = null;
             try {
                 InetAddress serverAddr = InetAddress.getByName(mServerIp);
-                Log.d(CLASS_NAME, String.format("Connecting heartbeat to %s", serverAddr.toString()));
+                mEventLog.record(EventLog.Event.HEARTBEAT_CONNECTING);
 
                 // This will block until a connection has been established or an IOException occurred.
                 boolean connected = false;
                 while (!connected && !isCancelled()) {
                     try {
-                        Log.d(CLASS_NAME, "Opening Heartbeat channel.");
-                        socketChannel = SocketChannel.open();
+                        socketChannel = track(SocketChannel.open());
                         socketChannel.configureBlocking(true);
                         socketChannel.connect(new InetSocketAddress(serverAddr, mServerPort));
                         connected = true;
-                    } catch (Exception e) {
-                        Log.e(CLASS_NAME, "Exception while trying to connect heartbeat to server: " + e.getClass());
-                        if (socketChannel != null) {
-                            try {
-                                socketChannel.close();
-                            } catch (Exception ioe) {
-                            }
+                    } catch (IOException e) {
+                        close(socketChannel);
+                        socketChannel = null;
+                        if (!isCancelled()) {
+                            mEventLog.record(EventLog.Event.HEARTBEAT_CONNECT_FAILED, e);
+                            pause(RETRY_DELAY_MILLIS);
                         }
-                        Thread.sleep(500);
                     }
                 }
+                if (!connected) {
+                    break;
+                }
 
                 ByteBuffer rcvBuffer = ByteBuffer.allocate(1);
-                Log.d(CLASS_NAME, "Starting to receive heartbeat.");
+                mEventLog.record(EventLog.Event.HEARTBEAT_RECEIVING);
                 while (!isCancelled()) {
 
                     int numBytesRead = socketChannel.read(rcvBuffer);
                     if (numBytesRead == -1) {
-                        Log.e(CLASS_NAME, "Received EOF on the heartbeat channel.");
+                        mEventLog.record(EventLog.Event.HEARTBEAT_EOF);
                         break;
                     }
                     if (numBytesRead == 0) {
-                        Log.e(CLASS_NAME, "Could not read next command.");
+                        mEventLog.record(EventLog.Event.HEARTBEAT_EMPTY_READ);
+                    } else if (mCapture != null) {
+                        rcvBuffer.flip();
+                        mCapture.record(TrafficCapture.CHANNEL_HEARTBEAT, rcvBuffer);
                     }
                     rcvBuffer.clear();
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
             } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (socketChannel != null) {
-                    try {
-                        socketChannel.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                if (!isCancelled()) {
+                    mEventLog.record(EventLog.Event.HEARTBEAT_ERROR, e);
                 }
+            } finally {
+                close(socketChannel);
             }
         }
-        Log.e(CLASS_NAME, "HeartbeatReceiver finished.");
-        return null;
+        mEventLog.record(EventLog.Event.HEARTBEAT_FINISHED);
     }
 }
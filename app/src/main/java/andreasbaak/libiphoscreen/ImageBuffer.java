@@ -0,0 +1,88 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The encoded data of a received image in an array from a BufferPool.
+ *
+ * The array may be larger than the image, so its first getLength() bytes are the image.
+ * The buffer is reference counted: whoever hands it to a listener holds one reference
+ * and releases it after the call. A listener that keeps the image beyond the call has
+ * to retain() it and release() it once it is done, after which the array goes back to
+ * the pool and is overwritten by a later image.
+ */
+public final class ImageBuffer {
+    private final BufferPool mPool;
+    private final byte[] mData;
+    private final int mLength;
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+
+    /**
+     * @param pool pool that the array is returned to, or null if it is not pooled.
+     */
+    ImageBuffer(BufferPool pool, byte[] data, int length) {
+        mPool = pool;
+        mData = data;
+        mLength = length;
+    }
+
+    /**
+     * @return a buffer for an array that is not pooled and holds exactly one image.
+     */
+    public static ImageBuffer wrap(byte[] data) {
+        return new ImageBuffer(null, data, data.length);
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Keep the buffer beyond the call it was handed to.
+     */
+    public ImageBuffer retain() {
+        while (true) {
+            int references = mReferences.get();
+            if (references <= 0) {
+                throw new IllegalStateException("The image buffer has already been released");
+            }
+            if (mReferences.compareAndSet(references, references + 1)) {
+                return this;
+            }
+        }
+    }
+
+    public void release() {
+        int references = mReferences.decrementAndGet();
+        if (references == 0 && mPool != null) {
+            mPool.release(mData);
+        } else if (references < 0) {
+            throw new IllegalStateException("The image buffer has been released too often");
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+/**
+ * Format and dimensions of an encoded image, taken from the first bytes of the payload
+ * without decoding the image.
+ *
+ * JPEG, WebP (lossy, lossless and extended) and PNG are recognized. For a JPEG, the
+ * dimensions are taken from the first start-of-frame segment, which may be preceded by
+ * large application segments such as EXIF data, hence parse() should see the first
+ * HEADER_LENGTH bytes of the payload. The orientation is taken from the EXIF segment
+ * on the way, so that the camera can tag portrait shots instead of rotating them.
+ */
+public final class ImageHeader {
+    public static final int FORMAT_UNKNOWN = 0;
+    public static final int FORMAT_JPEG = 1;
+    public static final int FORMAT_WEBP = 2;
+    public static final int FORMAT_PNG = 3;
+
+    /** Number of bytes that are sufficient to parse the header of nearly all images. */
+    public static final int HEADER_LENGTH = 64 * 1024;
+
+    /** EXIF orientations, which describe how the decoded image has to be transformed. */
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    public final int format;
+    /** Width of the image in pixels, or 0 if unknown. */
+    public final int width;
+    /** Height of the image in pixels, or 0 if unknown. */
+    public final int height;
+    /** EXIF orientation of the image, ORIENTATION_NORMAL if there is none. */
+    public final int orientation;
+
+    ImageHeader(int format, int width, int height) {
+        this(format, width, height, ORIENTATION_NORMAL);
+    }
+
+    ImageHeader(int format, int width, int height, int orientation) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+
+    /**
+     * @return whether the orientation swaps width and height.
+     */
+    public boolean isTransposed() {
+        return orientation >= ORIENTATION_TRANSPOSE && orientation <= ORIENTATION_ROTATE_270;
+    }
+
+    /**
+     * @param data the beginning of the encoded image.
+     * @param length number of valid bytes in data.
+     * @return the header, never null. Unknown properties are set to FORMAT_UNKNOWN and 0.
+     */
+    public static ImageHeader parse(byte[] data, int length) {
+        length = Math.min(length, data.length);
+        if (length >= 3 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8
+                && (data[2] & 0xff) == 0xff) {
+            return parseJpeg(data, length);
+        }
+        if (length >= 16 && matches(data, 0, "RIFF") && matches(data, 8, "WEBP")) {
+            return parseWebp(data, length);
+        }
+        if (length >= 24 && startsWith(data, PNG_SIGNATURE) && matches(data, 12, "IHDR")) {
+            return new ImageHeader(FORMAT_PNG, readInt32BigEndian(data, 16), readInt32BigEndian(data, 20));
+        }
+        return new ImageHeader(FORMAT_UNKNOWN, 0, 0);
+    }
+
+    /**
+     * Walk the segments of a JPEG until the first start-of-frame segment.
+     */
+    private static ImageHeader parseJpeg(byte[] data, int length) {
+        int orientation = ORIENTATION_NORMAL;
+        int position = 2;
+        while (position + 4 <= length) {
+            if ((data[position] & 0xff) != 0xff) {
+                break;
+            }
+            int marker = data[position + 1] & 0xff;
+            if (marker == 0xff) {
+                // Fill byte before a marker.
+                ++position;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // Markers without a segment.
+                position += 2;
+                continue;
+            }
+            int segmentLength = readInt16BigEndian(data, position + 2);
+            if (isStartOfFrame(marker)) {
+                if (position + 9 > length) {
+                    break;
+                }
+                int height = readInt16BigEndian(data, position + 5);
+                int width = readInt16BigEndian(data, position + 7);
+                return new ImageHeader(FORMAT_JPEG, width, height, orientation);
+            }
+            if (marker == 0xe1 && position + 2 + segmentLength <= length) {
+                orientation = parseExifOrientation(data, position + 4, segmentLength - 2, orientation);
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                // End of image or start of scan before any frame.
+                break;
+            }
+            position += 2 + segmentLength;
+        }
+        return new ImageHeader(FORMAT_JPEG, 0, 0, orientation);
+    }
+
+    /**
+     * Find the orientation tag in the first image file directory of an EXIF segment.
+     *
+     * @param offset start of the segment data, i.e. of the "Exif" identifier.
+     * @return the orientation, or defaultOrientation if the segment does not contain one.
+     */
+    private static int parseExifOrientation(byte[] data, int offset, int length, int defaultOrientation) {
+        if (length < 14 || !matches(data, offset, "Exif") || data[offset + 4] != 0 || data[offset + 5] != 0) {
+            return defaultOrientation;
+        }
+        // All offsets within the EXIF data are relative to the TIFF header.
+        int tiff = offset + 6;
+        int end = offset + length;
+        boolean littleEndian;
+        if (matches(data, tiff, "II")) {
+            littleEndian = true;
+        } else if (matches(data, tiff, "MM")) {
+            littleEndian = false;
+        } else {
+            return defaultOrientation;
+        }
+        long directory = tiff + (readInt32(data, tiff + 4, littleEndian) & 0xffffffffL);
+        if (directory + 2 > end) {
+            return defaultOrientation;
+        }
+        int entryCount = readInt16(data, (int) directory, littleEndian);
+        for (int i = 0; i < entryCount; ++i) {
+            int entry = (int) directory + 2 + 12 * i;
+            if (entry + 12 > end) {
+                break;
+            }
+            if (readInt16(data, entry, littleEndian) == EXIF_TAG_ORIENTATION) {
+                // A single SHORT value is stored at the beginning of the value field.
+                int orientation = readInt16(data, entry + 8, littleEndian);
+                if (orientation >= ORIENTATION_NORMAL && orientation <= ORIENTATION_ROTATE_270) {
+                    return orientation;
+                }
+                break;
+            }
+        }
+        return defaultOrientation;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // 0xc4 (huffman tables), 0xc8 (reserved) and 0xcc (arithmetic coding) are no frames.
+        return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+    }
+
+    /**
+     * Read the dimensions from the first chunk of a WebP file.
+     */
+    private static ImageHeader parseWebp(byte[] data, int length) {
+        if (length >= 30 && matches(data, 12, "VP8 ")
+                && (data[23] & 0xff) == 0x9d && (data[24] & 0xff) == 0x01 && (data[25] & 0xff) == 0x2a) {
+            // Lossy: the key frame header follows the three-byte frame tag.
+            int width = readInt16LittleEndian(data, 26) & 0x3fff;
+            int height = readInt16LittleEndian(data, 28) & 0x3fff;
+            return new ImageHeader(FORMAT_WEBP, width, height);
+        }
+        if (length >= 25 && matches(data, 12, "VP8L") && data[20] == 0x2f) {
+            // Lossless: 14 bits each for width - 1 and height - 1 after the signature byte.
+            int bits = readInt16LittleEndian(data, 21) | (readInt16LittleEndian(data, 23) << 16);
+            int width = (bits & 0x3fff) + 1;
+            int height = ((bits >> 14) & 0x3fff) + 1;
+            return new ImageHeader(FORMAT_WEBP, width, height);
+        }
+        if (length >= 30 && matches(data, 12, "VP8X")) {
+            // Extended: 24 bits each for canvas width - 1 and height - 1 after the flags.
+            int width = readInt24LittleEndian(data, 24) + 1;
+            int height = readInt24LittleEndian(data, 27) + 1;
+            return new ImageHeader(FORMAT_WEBP, width, height);
+        }
+        return new ImageHeader(FORMAT_WEBP, 0, 0);
+    }
+
+    /**
+     * Compute the factor by which the image can be downscaled while decoding, such that
+     * it still covers the target size. Returns 1 if the size of the image or the target
+     * is unknown.
+     *
+     * The target size refers to the image after it has been oriented.
+     *
+     * @param maxSampleSize largest factor that the decoder supports.
+     * @param powerOfTwo whether the decoder only supports powers of two.
+     */
+    public int getSampleSize(int targetWidth, int targetHeight, int maxSampleSize, boolean powerOfTwo) {
+        if (width <= 0 || height <= 0 || targetWidth <= 0 || targetHeight <= 0) {
+            return 1;
+        }
+        int orientedWidth = isTransposed() ? height : width;
+        int orientedHeight = isTransposed() ? width : height;
+        int sampleSize = Math.min(orientedWidth / targetWidth, orientedHeight / targetHeight);
+        sampleSize = Math.max(1, Math.min(sampleSize, maxSampleSize));
+        if (powerOfTwo) {
+            sampleSize = Integer.highestOneBit(sampleSize);
+        }
+        return sampleSize;
+    }
+
+    private static boolean matches(byte[] data, int offset, String tag) {
+        for (int i = 0; i < tag.length(); ++i) {
+            if (data[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; ++i) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readInt16BigEndian(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static int readInt32BigEndian(byte[] data, int offset) {
+        return (readInt16BigEndian(data, offset) << 16) | readInt16BigEndian(data, offset + 2);
+    }
+
+    private static int readInt16(byte[] data, int offset, boolean littleEndian) {
+        return littleEndian ? readInt16LittleEndian(data, offset) : readInt16BigEndian(data, offset);
+    }
+
+    private static int readInt32(byte[] data, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return readInt16LittleEndian(data, offset) | (readInt16LittleEndian(data, offset + 2) << 16);
+        }
+        return readInt32BigEndian(data, offset);
+    }
+
+    private static int readInt16LittleEndian(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+    }
+
+    private static int readInt24LittleEndian(byte[] data, int offset) {
+        return readInt16LittleEndian(data, offset) | ((data[offset + 2] & 0xff) << 16);
+    }
+
+    @Override
+    public String toString() {
+        return "format " + format + ", " + width + "x" + height + ", orientation " + orientation;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and helpers for the protocol that the libipho server speaks on the image port.
+ *
+ * Every message starts with a command byte. COMMAND_TAKEN stands on its own,
+ * COMMAND_DATA is followed by the size of the image and the image data.
+ * The size is transmitted as four digits in base 255, least significant digit first,
+ * since this is how the C++ server packs the integer.
+ */
+final class ImageProtocol {
+    static final byte COMMAND_TAKEN = 1;
+    static final byte COMMAND_DATA = 2;
+
+    /** Number of bytes of the encoded image size. */
+    static final int SIZE_LENGTH = 4;
+    /**
+     * Largest image that is accepted. The size comes from the network, so anything
+     * larger is taken as a corrupt stream rather than allocated.
+     */
+    static final int MAX_IMAGE_SIZE = 64 * 1024 * 1024;
+
+    private ImageProtocol() {
+    }
+
+    /**
+     * Decode the image size from the next SIZE_LENGTH bytes of the buffer.
+     */
+    static int decodeImageSize(ByteBuffer buffer) {
+        int imageSize = 0;
+        int start = buffer.position();
+        for (int i = SIZE_LENGTH - 1; i >= 0; --i) {
+            imageSize *= 0xff;
+            imageSize += buffer.get(start + i) & 0xff;
+        }
+        buffer.position(start + SIZE_LENGTH);
+        return imageSize;
+    }
+
+    /**
+     * @return whether a decoded image size is that of an image that can be received.
+     * The decoding overflows for corrupt sizes, so these may be negative.
+     */
+    static boolean isValidImageSize(int imageSize) {
+        return imageSize > 0 && imageSize <= MAX_IMAGE_SIZE;
+    }
+
+    /**
+     * Encode the image size into the next SIZE_LENGTH bytes of the buffer.
+     */
+    static void encodeImageSize(int imageSize, ByteBuffer buffer) {
+        for (int i = 0; i < SIZE_LENGTH; ++i) {
+            buffer.put((byte) (imageSize % 0xff));
+            imageSize /= 0xff;
+        }
+    }
+}
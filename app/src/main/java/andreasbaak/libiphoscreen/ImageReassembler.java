@@ -0,0 +1,271 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reassembles an image from the datagrams of MulticastProtocol.
+ *
+ * The chunks and the parity chunks are copied into buffers from a BufferPool. A complete image is
+ * handed out in its buffer, which returns to the pool once the image is released. Lost chunks are recovered from
+ * the parity chunk of their group as long as at most one chunk per group is missing.
+ * Everything that cannot be recovered is reported by getMissingRanges(), so that it can
+ * be fetched via the TCP fallback and filled in with getBuffer() and markRangeReceived().
+ *
+ * Only one image is reassembled at a time. This class is not thread-safe.
+ */
+class ImageReassembler {
+    private final BufferPool mPool;
+
+    private int mSession;
+    private int mImageId;
+    private int mImageSize;
+    private byte[] mBuffer;
+    private boolean[] mReceived;
+    private int mMissingChunks;
+    /** Parity chunks of all groups, one after the other. */
+    private byte[] mParity;
+    private boolean[] mHasParity;
+    private int[] mGroupMissing;
+    private int mRecoveredChunks;
+
+    /**
+     * Late datagrams of images that are at most this many ids older than the last image are ignored.
+     * Datagrams of even older images mean that the sender has been restarted. Usually, a restarted
+     * sender is already recognized by its new session, in which the ids start over.
+     */
+    private static final int STALE_IMAGE_WINDOW = 1000;
+
+    /** Id of the last image that has been completed or abandoned. */
+    private int mLastImageId = -1;
+
+    ImageReassembler(BufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @return true if an image is currently being reassembled.
+     */
+    boolean isActive() {
+        return mBuffer != null;
+    }
+
+    /**
+     * @return the session of the sender of the current or the last image.
+     */
+    int getSession() {
+        return mSession;
+    }
+
+    int getImageId() {
+        return mImageId;
+    }
+
+    /**
+     * @return the number of chunks of the current image that have been recovered from parity.
+     */
+    int getRecoveredChunks() {
+        return mRecoveredChunks;
+    }
+
+    /**
+     * Add a DATA or PARITY datagram, which has to be well-formed, see MulticastProtocol.isWellFormed().
+     * @return the complete image, which has to be released, or null if the image is not complete yet.
+     */
+    ImageBuffer onPacket(ByteBuffer packet) {
+        int session = MulticastProtocol.getSession(packet);
+        if (session != mSession) {
+            // The sender has been restarted, none of its ids relate to the previous ones.
+            abandon();
+            mSession = session;
+            mLastImageId = -1;
+        }
+        int imageId = MulticastProtocol.getImageId(packet);
+        int age = mLastImageId - imageId;
+        if ((mLastImageId >= 0 && age >= 0 && age < STALE_IMAGE_WINDOW)
+                || (isActive() && imageId != mImageId)) {
+            return null;
+        }
+        int imageSize = MulticastProtocol.getImageSize(packet);
+        if (!isActive()) {
+            start(imageId, imageSize);
+        } else if (imageSize != mImageSize) {
+            return null;
+        }
+        int index = MulticastProtocol.getIndex(packet);
+        int payloadStart = packet.position() + MulticastProtocol.HEADER_LENGTH;
+        if (MulticastProtocol.getType(packet) == MulticastProtocol.TYPE_DATA) {
+            if (index < 0 || index >= mReceived.length || mReceived[index]) {
+                return null;
+            }
+            int length = MulticastProtocol.getChunkLength(mImageSize, index);
+            ByteBuffer payload = packet.duplicate();
+            payload.position(payloadStart);
+            payload.get(mBuffer, index * MulticastProtocol.CHUNK_SIZE, length);
+            markChunkReceived(index);
+            recoverGroup(index / MulticastProtocol.GROUP_SIZE);
+        } else {
+            if (index < 0 || index >= mHasParity.length || mHasParity[index]) {
+                return null;
+            }
+            ByteBuffer payload = packet.duplicate();
+            payload.position(payloadStart);
+            payload.get(mParity, index * MulticastProtocol.CHUNK_SIZE, MulticastProtocol.CHUNK_SIZE);
+            mHasParity[index] = true;
+            recoverGroup(index);
+        }
+        return completeIfDone();
+    }
+
+    private void start(int imageId, int imageSize) {
+        mImageId = imageId;
+        mImageSize = imageSize;
+        mBuffer = mPool.acquire(imageSize);
+        int chunkCount = MulticastProtocol.getChunkCount(imageSize);
+        mReceived = new boolean[chunkCount];
+        mMissingChunks = chunkCount;
+        int groupCount = MulticastProtocol.getGroupCount(chunkCount);
+        mParity = mPool.acquire(groupCount * MulticastProtocol.CHUNK_SIZE);
+        mHasParity = new boolean[groupCount];
+        mGroupMissing = new int[groupCount];
+        for (int group = 0; group < groupCount; ++group) {
+            mGroupMissing[group] = Math.min(MulticastProtocol.GROUP_SIZE,
+                    chunkCount - group * MulticastProtocol.GROUP_SIZE);
+        }
+        mRecoveredChunks = 0;
+    }
+
+    private void markChunkReceived(int chunk) {
+        mReceived[chunk] = true;
+        mMissingChunks--;
+        mGroupMissing[chunk / MulticastProtocol.GROUP_SIZE]--;
+    }
+
+    /**
+     * Reconstruct the only missing chunk of the group from the parity and the other chunks.
+     */
+    private void recoverGroup(int group) {
+        if (!mHasParity[group] || mGroupMissing[group] != 1) {
+            return;
+        }
+        int firstChunk = group * MulticastProtocol.GROUP_SIZE;
+        int lastChunk = Math.min(firstChunk + MulticastProtocol.GROUP_SIZE, mReceived.length);
+        int missing = firstChunk;
+        while (mReceived[missing]) {
+            missing++;
+        }
+        int missingStart = missing * MulticastProtocol.CHUNK_SIZE;
+        int missingLength = MulticastProtocol.getChunkLength(mImageSize, missing);
+        System.arraycopy(mParity, group * MulticastProtocol.CHUNK_SIZE, mBuffer, missingStart, missingLength);
+        for (int chunk = firstChunk; chunk < lastChunk; ++chunk) {
+            if (chunk == missing) {
+                continue;
+            }
+            int start = chunk * MulticastProtocol.CHUNK_SIZE;
+            int length = Math.min(missingLength, MulticastProtocol.getChunkLength(mImageSize, chunk));
+            for (int i = 0; i < length; ++i) {
+                mBuffer[missingStart + i] ^= mBuffer[start + i];
+            }
+        }
+        markChunkReceived(missing);
+        mRecoveredChunks++;
+    }
+
+    private ImageBuffer completeIfDone() {
+        if (mMissingChunks > 0) {
+            return null;
+        }
+        ImageBuffer image = new ImageBuffer(mPool, mBuffer, mImageSize);
+        mBuffer = null;
+        finish();
+        return image;
+    }
+
+    /**
+     * @return the missing parts of the current image as pairs of offset and length.
+     */
+    List<int[]> getMissingRanges() {
+        List<int[]> ranges = new ArrayList<>();
+        int chunk = 0;
+        while (chunk < mReceived.length) {
+            if (mReceived[chunk]) {
+                chunk++;
+                continue;
+            }
+            int first = chunk;
+            while (chunk < mReceived.length && !mReceived[chunk]) {
+                chunk++;
+            }
+            int offset = first * MulticastProtocol.CHUNK_SIZE;
+            int end = Math.min(chunk * MulticastProtocol.CHUNK_SIZE, mImageSize);
+            ranges.add(new int[] { offset, end - offset });
+        }
+        return ranges;
+    }
+
+    /**
+     * @return the buffer of the current image, used to fill in missing ranges.
+     */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Mark a range that has been written into getBuffer() as received.
+     * The range has to be one of the ranges returned by getMissingRanges().
+     * @return the complete image, which has to be released, or null if the image is not complete yet.
+     */
+    ImageBuffer markRangeReceived(int offset, int length) {
+        int firstChunk = offset / MulticastProtocol.CHUNK_SIZE;
+        int endChunk = MulticastProtocol.getChunkCount(offset + length);
+        for (int chunk = firstChunk; chunk < endChunk; ++chunk) {
+            if (!mReceived[chunk]) {
+                markChunkReceived(chunk);
+            }
+        }
+        return completeIfDone();
+    }
+
+    /**
+     * Stop reassembling the current image and return its buffers to the pool.
+     */
+    void abandon() {
+        if (!isActive()) {
+            return;
+        }
+        mPool.release(mBuffer);
+        mBuffer = null;
+        finish();
+    }
+
+    private void finish() {
+        mPool.release(mParity);
+        mReceived = null;
+        mParity = null;
+        mHasParity = null;
+        mGroupMissing = null;
+        mLastImageId = mImageId;
+    }
+}
@@ -30,6 +30,7 @@ public interface ImageReceivedListener {
 
     /**
      * This function is called as soon as the image data has been received.
+     * The buffer is only valid during the call, unless the listener retains it.
      */
-    void onImageReceived(byte[] imageBuffer);
+    void onImageReceived(ImageBuffer image);
 }
@@ -21,15 +21,14 @@ along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
 
 package andreasbaak.libiphoscreen;
 
-import android.os.AsyncTask;
-import android.support.annotation.NonNull;
-import android.util.Log;
-
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 
 /**
@@ -39,9 +38,18 @@ import java.nio.channels.SocketChannel;
  * a listener is notified about the successful network setup using the
  * NetworkConnectionStatusListener interface. Similarly, the listener is notified
  * as soon as the connection is aborted.
+ *
+ * Images that are larger than a configurable threshold can be streamed directly
+ * into a temporary file instead of being held on the heap, see setSpillToFile().
+ *
+ * The socket options and the read strategy are given by a TransportProfile.
  */
-public class ImageReceiver extends AsyncTask<Void, Void, Void> {
-    public static final String CLASS_NAME = "ImageReceiver";
+public class ImageReceiver extends TransportTask {
+    private static final long RETRY_DELAY_MILLIS = 500;
+    /** One array that is being received into, one that is being decoded and a spare. */
+    private static final int MAX_POOLED_BUFFERS = 3;
+
+    private final EventLog mEventLog = EventLog.get();
 
     enum ImageCommand {
         INVALID,
@@ -54,10 +62,37 @@ public class ImageReceiver extends AsyncTask<Void, Void, Void> {
     private final String mServerIp;
     private final int mServerPort;
 
+    private ImageFileReceivedListener mImageFileListener;
+    private File mSpillDirectory;
+    private int mSpillThreshold = Integer.MAX_VALUE;
+
+    private TrafficCapture mCapture;
+
+    private TransportProfile mProfile = new TransportProfile();
+    /** Whether the receive buffer of the current connection has been tuned already. */
+    private boolean mTuned;
+
+    private MemoryBudget mMemoryBudget;
+    /**
+     * Sizes of the most recent images that have been received on the heap,
+     * used to reserve an array for the next image ahead of time.
+     */
+    private final int[] mRecentImageSizes = new int[4];
+    private int mNumImages;
+    /** Buffer that receives the next command. */
+    private final ByteBuffer mCommandBuffer = ByteBuffer.allocate(1);
+    /** Buffer that receives the size of the next image. */
+    private final ByteBuffer mImageSizeBuffer = ByteBuffer.allocate(ImageProtocol.SIZE_LENGTH);
+    /**
+     * Arrays that the images are received into. An array is handed to the listener and
+     * comes back to the pool once the listener and everyone it passed the image on to
+     * have released it, so that a session does not allocate an array per image.
+     */
+    private final BufferPool mBufferPool = new BufferPool(MAX_POOLED_BUFFERS);
+
     /**
      * Create a new ImageReceiver. After creating the instance,
-     * the receiver can be started with the execute() functions of the
-     * AsyncTask class.
+     * the receiver can be started with TransportExecutor.execute().
      *
      * @param serverIp
      * IP address of the server that we connect to.
@@ -71,6 +106,7 @@ public class ImageReceiver extends AsyncTask<Void, Void, Void> {
     public ImageReceiver(String serverIp, int serverPort,
                          ImageReceivedListener imageListener,
                          NetworkConnectionStatusListener networkListener) {
+        super("ImageReceiver", PRIORITY_RECEIVE);
         mServerIp = serverIp;
         mServerPort = serverPort;
         mImageListener = imageListener;
@@ -79,150 +115,298 @@ public class ImageReceiver extends AsyncTask<Void, Void, Void> {
         mNetworkListener.onDisconnected();
     }
 
+    /**
+     * Stream images that are larger than thresholdBytes into a temporary file
+     * instead of receiving them into a buffer on the heap.
+     * The data is transferred from the socket to the file by the kernel,
+     * so that the payload never has to be held by the Java heap.
+     * Has to be called before the receiver is started.
+     *
+     * @param directory
+     * Directory in which the temporary files are created, e.g. the cache directory.
+     * @param thresholdBytes
+     * Images that are larger than this number of bytes are written to a file.
+     * @param fileListener
+     * Class that is notified about images that have been written to a file.
+     */
+    public void setSpillToFile(File directory, int thresholdBytes,
+                               ImageFileReceivedListener fileListener) {
+        mSpillDirectory = directory;
+        mSpillThreshold = thresholdBytes;
+        mImageFileListener = fileListener;
+    }
+
+    /**
+     * Account the pooled receive arrays of this receiver in the given budget.
+     * Has to be called before the receiver is started.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Record every received frame into the given capture.
+     * Has to be called before the receiver is started.
+     */
+    public void setTrafficCapture(TrafficCapture capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Use the socket options and read strategy of the given profile.
+     * Has to be called before the receiver is started.
+     */
+    public void setTransportProfile(TransportProfile profile) {
+        mProfile = new TransportProfile(profile);
+    }
+
     @Override
-    protected Void doInBackground(Void... params) {
+    protected void runTask() {
+        if (mMemoryBudget != null) {
+            mMemoryBudget.register(mBufferPool);
+        }
         while (!isCancelled()) {
             SocketChannel channel = null;
             try {
                 InetAddress serverAddr = InetAddress.getByName(mServerIp);
                 channel = connectToServer(serverAddr);
-                // connectToServer can return an unconnected server
-                // if the thread is interrupted. Check for this here:
-                if (isCancelled()) {
+                // connectToServer returns null if the task has been cancelled.
+                if (channel == null) {
                     break;
                 }
                 mNetworkListener.onConnected();
+                FramingReader reader = new FramingReader(channel,
+                        mProfile.getReadAheadSize(), mProfile.isDirectBuffers());
                 while (!isCancelled()) {
-                    ImageCommand command = receiveCommand(channel);
+                    ImageCommand command = receiveCommand(reader);
                     if (command == null) {
                         throw new Exception("Socket was closed on receiving a command.");
                     } else if (command == ImageCommand.TAKEN) {
+                        reserveReceiveBuffer();
                         mImageListener.onImageTaken();
                     } else if (command == ImageCommand.DATA) {
-                        byte[] imageBuf = receiveImage(channel);
-                        if (imageBuf == null) {
-                            throw new Exception("Socket was closed on receiving an image.");
+                        int imageSize = receiveImageSize(reader);
+                        if (imageSize < 0) {
+                            throw new Exception("Socket was closed on receiving an image size.");
+                        }
+                        if (mImageFileListener != null && imageSize > mSpillThreshold) {
+                            File imageFile = receiveImageToFile(reader, imageSize);
+                            if (imageFile == null) {
+                                throw new Exception("Socket was closed on receiving an image.");
+                            }
+                            mImageFileListener.onImageFileReceived(imageFile);
+                        } else {
+                            mRecentImageSizes[mNumImages++ % mRecentImageSizes.length] = imageSize;
+                            ImageBuffer image = receiveImage(channel, reader, imageSize);
+                            if (image == null) {
+                                throw new Exception("Socket was closed on receiving an image.");
+                            }
+                            try {
+                                mImageListener.onImageReceived(image);
+                            } finally {
+                                image.release();
+                            }
                         }
-                        mImageListener.onImageReceived(imageBuf);
-                    } else {
-                        Log.e(CLASS_NAME, "Received invalid command.");
                     }
                 }
             } catch (Exception e) {
-                Log.e(CLASS_NAME, "Connection error", e);
-            } finally {
-                if (channel != null) {
-                    try {
-                        channel.close();
-                    } catch (IOException e) {
-                    }
+                if (!isCancelled()) {
+                    mEventLog.record(EventLog.Event.CONNECTION_ERROR, e);
                 }
+            } finally {
+                close(channel);
             }
             mNetworkListener.onDisconnected();
         }
-        Log.d(CLASS_NAME, "Finished operation on receiver " + this);
-        return null;
+        if (mMemoryBudget != null) {
+            mMemoryBudget.unregister(mBufferPool);
+        }
+        mBufferPool.trimMemory();
+        mEventLog.record(EventLog.Event.RECEIVER_FINISHED);
     }
 
-    @NonNull
-    private SocketChannel connectToServer(InetAddress serverAddr) throws InterruptedException {
-        Log.d(CLASS_NAME, String.format("Connecting to %s", serverAddr.toString()));
-        SocketChannel socketChannel = null;
-
-        // This will block until a connection has been established or an IOException occurred.
-        boolean connected = false;
-        while (!connected && !isCancelled()) {
+    /**
+     * Connect to the server. Blocks until a connection has been established
+     * or the task has been cancelled.
+     * @return the connected channel or null if the task has been cancelled.
+     */
+    private SocketChannel connectToServer(InetAddress serverAddr) {
+        mEventLog.record(EventLog.Event.CONNECTING);
+        while (!isCancelled()) {
+            SocketChannel socketChannel = null;
             try {
-                socketChannel = SocketChannel.open();
+                socketChannel = track(SocketChannel.open());
                 socketChannel.configureBlocking(true);
+                mProfile.applyTo(socketChannel.socket());
+                long start = System.nanoTime();
                 socketChannel.connect(new InetSocketAddress(serverAddr, mServerPort));
-                connected = true;
-            } catch (Exception e) {
-                Log.e(CLASS_NAME, "Exception while trying to connect to server: " + e.getClass());
-                Thread.sleep(500);
-                if (socketChannel != null) {
-                    try {
-                        socketChannel.close();
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                    }
+                mProfile.onConnected(System.nanoTime() - start);
+                mTuned = false;
+                return socketChannel;
+            } catch (IOException e) {
+                close(socketChannel);
+                if (!isCancelled()) {
+                    mEventLog.record(EventLog.Event.CONNECT_FAILED, e);
+                    pause(RETRY_DELAY_MILLIS);
                 }
             }
         }
-
-        return socketChannel;
+        return null;
     }
 
-    private byte[] receiveImage(SocketChannel channel) throws IOException {
-        // Obtain the size of the next image in bytes
-        Log.d(CLASS_NAME, "Waiting for next image.");
+    /**
+     * Obtain the size of the next image in bytes.
+     * @return the size of the image or -1 if the socket was closed.
+     */
+    private int receiveImageSize(FramingReader reader) throws IOException {
         try {
-            ByteBuffer imageSizeBuffer = ByteBuffer.allocate(4);
-            int numBytesRead = channel.read(imageSizeBuffer);
-            if (numBytesRead == -1) {
-                Log.e(CLASS_NAME, "Socket was closed while reading the size of the next image." );
-                return null;
-            } else if (numBytesRead < 4) {
-                Log.e(CLASS_NAME, "Could not read the size of the next image completely." );
-                return null;
+            ByteBuffer imageSizeBuffer = mImageSizeBuffer;
+            imageSizeBuffer.clear();
+            if (!reader.readFully(imageSizeBuffer)) {
+                mEventLog.record(EventLog.Event.EOF_IMAGE_SIZE);
+                return -1;
             }
-            // numBytesRead == 4 at this stage.
             imageSizeBuffer.flip();
-            byte intBuf[] = new byte[4];
-            imageSizeBuffer.get(intBuf);
-
-            int imageSize = 0;
-            for (int i = 0; i < 4; ++i) {
-                int interpretedByte = (((int) intBuf[intBuf.length - 1 - i]) & 0xff);
-                imageSize *= 0xff;
-                imageSize += interpretedByte;
-            }
+            return ImageProtocol.decodeImageSize(imageSizeBuffer);
+        } catch (EOFException e) {
+            mEventLog.record(EventLog.Event.EOF_IMAGE_SIZE);
+            return -1;
+        }
+    }
 
-            ByteBuffer imageBuffer = ByteBuffer.allocate(imageSize);
-            Log.d(CLASS_NAME, String.format("Trying to receive an image buffer of size %d", imageSize));
-            numBytesRead = 0;
-            while (numBytesRead < imageSize) {
-                int nbytes = channel.read(imageBuffer);
-                if (nbytes == -1) {
-                    Log.e(CLASS_NAME, "Received EOF while reading image data.");
-                    return null;
-                }
-                numBytesRead += nbytes;
+    private ImageBuffer receiveImage(SocketChannel channel, FramingReader reader, int imageSize)
+            throws IOException {
+        byte[] data = obtainBuffer(imageSize);
+        try {
+            // Received straight into the array that is handed to the listener.
+            ByteBuffer imageBuffer = ByteBuffer.wrap(data, 0, imageSize);
+            mEventLog.record(EventLog.Event.IMAGE_RECEIVING, imageSize);
+            long start = System.nanoTime();
+            if (!reader.readFully(imageBuffer)) {
+                mEventLog.record(EventLog.Event.EOF_IMAGE_DATA);
+                return null;
+            }
+            if (!mTuned && mProfile.onReceived(imageSize, System.nanoTime() - start)) {
+                // Takes effect as far as the window scale of the connection allows,
+                // and fully for the next connection.
+                mTuned = true;
+                channel.socket().setReceiveBufferSize(mProfile.getReceiveBufferSize());
+                mEventLog.record(EventLog.Event.TRANSPORT_TUNED, mProfile.getReceiveBufferSize());
             }
             imageBuffer.flip();
-            byte[] imageBuf = new byte[imageSize];
-            imageBuffer.get(imageBuf);
-            Log.d(CLASS_NAME, String.format("Received image buffer of size %d", imageBuf.length));
-            return imageBuf;
+            if (mCapture != null) {
+                mImageSizeBuffer.rewind();
+                mCapture.record(TrafficCapture.CHANNEL_IMAGE, mImageSizeBuffer, imageBuffer);
+            }
+            mEventLog.record(EventLog.Event.IMAGE_RECEIVED, imageSize);
+            ImageBuffer image = new ImageBuffer(mBufferPool, data, imageSize);
+            data = null;
+            return image;
         } catch (EOFException e) {
-            Log.e(CLASS_NAME, "Server closed the socket." );
+            mEventLog.record(EventLog.Event.EOF_IMAGE_DATA);
             return null;
+        } finally {
+            if (data != null) {
+                mBufferPool.release(data);
+            }
         }
     }
 
-    private ImageCommand receiveCommand(SocketChannel channel) throws IOException {
-        Log.d(CLASS_NAME, "Waiting for next command.");
-        ByteBuffer buffer = ByteBuffer.allocate(1);
-        int numBytesRead = channel.read(buffer);
-        if (numBytesRead == -1) {
-            Log.e(CLASS_NAME, "Socket was closed while reading next command.");
-            return null;
-        } else if (numBytesRead == 0) {
-            Log.e(CLASS_NAME, "Could not read next command.");
-            return null;
+    /**
+     * Make sure that the pool holds an array for the largest of the recent images
+     * before the image data arrives, so that the allocation does not delay the image.
+     */
+    private void reserveReceiveBuffer() {
+        int expectedSize = 0;
+        for (int size : mRecentImageSizes) {
+            expectedSize = Math.max(expectedSize, size);
+        }
+        if (expectedSize == 0) {
+            return;
         }
-        // numBytesRead == 1 at this stage.
+        long start = System.nanoTime();
+        mBufferPool.release(obtainBuffer(expectedSize));
+        mEventLog.record(EventLog.Event.WARMUP_RECEIVE_BUFFER, (System.nanoTime() - start) / 1000);
+    }
 
+    /**
+     * Return an array for an image of imageSize bytes, from the pool if possible.
+     * New arrays get some headroom, so that a slightly larger image fits as well.
+     */
+    private byte[] obtainBuffer(int imageSize) {
+        byte[] buffer = mBufferPool.poll(imageSize);
+        if (buffer != null) {
+            return buffer;
+        }
+        int size = (int) Math.min(Integer.MAX_VALUE, imageSize + imageSize / 8L);
+        if (mMemoryBudget != null && !mMemoryBudget.ensureAvailable(size, mBufferPool)) {
+            // The image has to be received anyway, but without keeping spare arrays around.
+            mBufferPool.trimMemory();
+            mEventLog.record(EventLog.Event.RECEIVE_BUFFER_OVER_BUDGET, imageSize);
+            size = imageSize;
+        }
+        return mBufferPool.acquire(size);
+    }
+
+    /**
+     * Transfer the image data from the socket into a new temporary file
+     * without copying it through the Java heap.
+     * @return the file that contains the image or null if the socket was closed.
+     */
+    private File receiveImageToFile(FramingReader reader, int imageSize) throws IOException {
+        mEventLog.record(EventLog.Event.IMAGE_FILE_RECEIVING, imageSize);
+        File imageFile = File.createTempFile("image", ".jpg", mSpillDirectory);
+        RandomAccessFile file = null;
+        boolean complete = false;
+        try {
+            file = new RandomAccessFile(imageFile, "rw");
+            FileChannel fileChannel = file.getChannel();
+            if (!reader.transferTo(fileChannel, 0, imageSize)) {
+                mEventLog.record(EventLog.Event.EOF_IMAGE_DATA);
+                return null;
+            }
+            if (mCapture != null) {
+                mImageSizeBuffer.rewind();
+                mCapture.record(TrafficCapture.CHANNEL_IMAGE, mImageSizeBuffer,
+                        fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, imageSize));
+            }
+            complete = true;
+            mEventLog.record(EventLog.Event.IMAGE_FILE_RECEIVED, imageSize);
+            return imageFile;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!complete && !imageFile.delete()) {
+                mEventLog.record(EventLog.Event.IMAGE_FILE_DELETE_FAILED);
+            }
+        }
+    }
+
+    private ImageCommand receiveCommand(FramingReader reader) throws IOException {
+        ByteBuffer buffer = mCommandBuffer;
+        buffer.clear();
+        if (!reader.readFully(buffer)) {
+            mEventLog.record(EventLog.Event.EOF_COMMAND);
+            return null;
+        }
         buffer.flip();
+        if (mCapture != null) {
+            mCapture.record(TrafficCapture.CHANNEL_IMAGE, buffer);
+        }
         byte command = buffer.get();
         switch (command) {
-            case 1:
-                Log.d(CLASS_NAME, "An image has been taken!");
+            case ImageProtocol.COMMAND_TAKEN:
+                mEventLog.record(EventLog.Event.COMMAND_TAKEN);
                 return ImageCommand.TAKEN;
-            case 2:
-                Log.d(CLASS_NAME, "Image data will be transferred!");
+            case ImageProtocol.COMMAND_DATA:
+                mEventLog.record(EventLog.Event.COMMAND_DATA);
                 return ImageCommand.DATA;
             default:
+                mEventLog.record(EventLog.Event.INVALID_COMMAND, command);
                 return ImageCommand.INVALID;
         }
     }
@@ -0,0 +1,45 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+/**
+ * Decodes JPEG images straight to the target size.
+ *
+ * libjpeg scales JPEG images in the DCT domain by 1/2, 1/4 and 1/8: it computes only
+ * the low-frequency coefficients of each 8x8 block, hence a downscaled decode is much
+ * faster than a full decode and needs a fraction of the memory. Larger sample sizes
+ * would be emulated by skipping pixels, which only degrades the image.
+ */
+public class JpegFrameDecoder extends BitmapFrameDecoder {
+    /** Largest factor by which libjpeg scales in the DCT domain. */
+    public static final int MAX_SAMPLE_SIZE = 8;
+
+    @Override
+    public boolean supports(int format) {
+        return format == ImageHeader.FORMAT_JPEG;
+    }
+
+    @Override
+    public int getSampleSize(ImageHeader header, int targetWidth, int targetHeight) {
+        return header.getSampleSize(targetWidth, targetHeight, MAX_SAMPLE_SIZE, true);
+    }
+}
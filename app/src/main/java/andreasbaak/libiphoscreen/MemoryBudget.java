@@ -0,0 +1,188 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Central account of the memory that is used for bitmaps and buffers.
+ *
+ * Every class that holds on to a large bitmap or buffer registers itself as an Owner.
+ * The budget is sized from the memory class of the device. Before an owner allocates
+ * a large object, it asks the budget for room via ensureAvailable(), which trims owners
+ * with a lower priority first. This keeps the memory footprint flat during long sessions
+ * instead of letting the garbage collector clean up behind us.
+ *
+ * The budget forwards onTrimMemory() and onLowMemory() to the owners in priority order:
+ * caches are shed first, then receive buffers, and the displayed image only if the
+ * app is about to be killed anyway.
+ */
+public class MemoryBudget {
+    private static final String CLASS_NAME = "MemoryBudget";
+
+    /** Owners with this priority hold data that can be recreated cheaply. */
+    public static final int PRIORITY_CACHE = 0;
+    /** Owners with this priority hold buffers that are reused between images. */
+    public static final int PRIORITY_BUFFER = 1;
+    /** Owners with this priority hold the image that is currently shown. */
+    public static final int PRIORITY_DISPLAY = 2;
+
+    /** Fraction of the memory class that we allow ourselves to use for bitmaps and buffers. */
+    private static final int BUDGET_FRACTION = 2;
+
+    /**
+     * A holder of a bitmap or buffer that is accounted for by the budget.
+     */
+    public interface Owner {
+        /**
+         * @return the number of bytes that the owner currently holds.
+         */
+        long getMemoryUsage();
+
+        /**
+         * @return one of the PRIORITY_ constants. Owners with a lower priority are trimmed first.
+         */
+        int getTrimPriority();
+
+        /**
+         * Release as much memory as possible.
+         * This function can be called from any thread.
+         */
+        void trimMemory();
+    }
+
+    private final long mBudgetBytes;
+    private final List<Owner> mOwners = new ArrayList<>();
+
+    /**
+     * Create a budget that is sized according to the memory class of the device.
+     */
+    public static MemoryBudget fromContext(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        return new MemoryBudget(memoryClassBytes / BUDGET_FRACTION);
+    }
+
+    public MemoryBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    public long getBudget() {
+        return mBudgetBytes;
+    }
+
+    public synchronized void register(Owner owner) {
+        if (!mOwners.contains(owner)) {
+            mOwners.add(owner);
+        }
+    }
+
+    public synchronized void unregister(Owner owner) {
+        mOwners.remove(owner);
+    }
+
+    /**
+     * @return the number of bytes held by all registered owners.
+     */
+    public synchronized long getUsage() {
+        long usage = 0;
+        for (Owner owner : mOwners) {
+            usage += owner.getMemoryUsage();
+        }
+        return usage;
+    }
+
+    /**
+     * Make room for an allocation of the given size by trimming owners
+     * with a lower priority than the requesting owner.
+     *
+     * @return true if the allocation fits into the budget.
+     */
+    public boolean ensureAvailable(long bytes, Owner requester) {
+        int maxPriority = requester.getTrimPriority() - 1;
+        for (int priority = PRIORITY_CACHE; priority <= maxPriority; ++priority) {
+            if (getUsage() + bytes <= mBudgetBytes) {
+                return true;
+            }
+            trimPriority(priority);
+        }
+        boolean fits = getUsage() + bytes <= mBudgetBytes;
+        if (!fits) {
+            Log.w(CLASS_NAME, String.format("Allocation of %d bytes exceeds the budget: %s", bytes, this));
+        }
+        return fits;
+    }
+
+    /**
+     * Shed memory according to a level of ComponentCallbacks2.onTrimMemory().
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            trimUpTo(PRIORITY_DISPLAY);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // Covers RUNNING_LOW, RUNNING_CRITICAL, UI_HIDDEN, BACKGROUND and MODERATE.
+            trimUpTo(PRIORITY_BUFFER);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimUpTo(PRIORITY_CACHE);
+        }
+        Log.i(CLASS_NAME, String.format("Trimmed memory for level %d: %s", level, this));
+    }
+
+    /**
+     * Shed memory when the whole system is running low.
+     */
+    public void onLowMemory() {
+        trimUpTo(PRIORITY_BUFFER);
+        Log.i(CLASS_NAME, "Trimmed memory on low memory: " + this);
+    }
+
+    private void trimUpTo(int maxPriority) {
+        for (int priority = PRIORITY_CACHE; priority <= maxPriority; ++priority) {
+            trimPriority(priority);
+        }
+    }
+
+    private void trimPriority(int priority) {
+        List<Owner> owners;
+        synchronized (this) {
+            owners = new ArrayList<>(mOwners);
+        }
+        // Call the owners without holding the lock since they may call back into the budget.
+        for (Owner owner : owners) {
+            if (owner.getTrimPriority() == priority) {
+                owner.trimMemory();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d KiB used", getUsage() / 1024, mBudgetBytes / 1024);
+    }
+}
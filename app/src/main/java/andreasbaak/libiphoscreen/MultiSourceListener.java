@@ -0,0 +1,44 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+/**
+ * Receives the events of a MultiSourceReceiver. Each source is identified
+ * by its index in the list of servers that the receiver has been created with.
+ * All functions are called from the thread of the receiver.
+ */
+public interface MultiSourceListener {
+    /**
+     * An image has been taken at the given source. Its data will follow shortly.
+     */
+    void onImageTaken(int source);
+
+    /**
+     * The image data of the given source has been received. The image is only valid
+     * during the call, unless the listener retains it, see ImageBuffer.
+     */
+    void onImageReceived(int source, ImageBuffer image);
+
+    void onSourceConnected(int source);
+
+    void onSourceDisconnected(int source);
+}
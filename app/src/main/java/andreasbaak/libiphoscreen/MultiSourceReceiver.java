@@ -0,0 +1,428 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Receive commands and image data from several libipho servers at once.
+ *
+ * In contrast to ImageReceiver and HeartbeatReceiver, which block a thread per socket,
+ * this receiver multiplexes the image and heartbeat channels of all servers on a single
+ * thread using a Selector. Each server is called a source and is identified by its index
+ * in the list of servers. Incoming data is parsed incrementally by a small state machine
+ * per source, so that a slow source never blocks the others.
+ *
+ * Lost connections are re-established after a short delay. The listener is notified
+ * about the connection state of every source individually. A source that sends an
+ * invalid image size is disconnected, without affecting the other sources.
+ *
+ * The images are received into arrays of a BufferPool that all sources share, and
+ * which can be accounted in a MemoryBudget. The traffic of all sources can be recorded
+ * into a TrafficCapture, one read at a time.
+ *
+ * The class is implemented as a TransportTask in order to easily run in the background.
+ * As soon as the task is cancelled via cancel(), all connections are closed
+ * and the background thread ends.
+ */
+public class MultiSourceReceiver extends TransportTask {
+    private static final long RECONNECT_DELAY_MILLIS = 500;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final int STATE_COMMAND = 0;
+    private static final int STATE_SIZE = 1;
+    private static final int STATE_PAYLOAD = 2;
+
+    /**
+     * Connection and parser state of a single server.
+     */
+    private static class Source {
+        final int index;
+        final String serverIp;
+        SocketChannel imageChannel;
+        SocketChannel heartbeatChannel;
+        boolean connected;
+        long reconnectAtMillis;
+
+        int state = STATE_COMMAND;
+        final ByteBuffer sizeBuffer = ByteBuffer.allocate(ImageProtocol.SIZE_LENGTH);
+        /** Array from the pool that the current image is received into, if any. */
+        byte[] payload;
+        int payloadLength;
+        int payloadPosition;
+
+        Source(int index, String serverIp) {
+            this.index = index;
+            this.serverIp = serverIp;
+        }
+    }
+
+    private final EventLog mEventLog = EventLog.get();
+    private final String[] mServerIps;
+    private final int mImagePort;
+    private final int mHeartbeatPort;
+    private final MultiSourceListener mListener;
+    /** All sources share this buffer since they are read one after the other. */
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private volatile Selector mSelector;
+    private MemoryBudget mMemoryBudget;
+    private TrafficCapture mCapture;
+    /**
+     * Arrays that the images are received into. An array comes back to the pool once
+     * the listener has released the image, so that a session does not allocate an
+     * array per image. The pool keeps one idle array per source.
+     */
+    private final BufferPool mBufferPool;
+
+    /**
+     * Create a new receiver. The receiver has to be started with
+     * TransportExecutor.execute().
+     *
+     * @param serverIps
+     * IP addresses or hostnames of all servers that we connect to.
+     * @param imagePort
+     * TCP port of the image channel of the servers.
+     * @param heartbeatPort
+     * TCP port of the heartbeat channel of the servers.
+     * @param listener
+     * Class that is notified about images and the connection state of each source.
+     */
+    public MultiSourceReceiver(String[] serverIps, int imagePort, int heartbeatPort,
+                               MultiSourceListener listener) {
+        super("MultiSourceReceiver", PRIORITY_RECEIVE);
+        mServerIps = serverIps;
+        mImagePort = imagePort;
+        mHeartbeatPort = heartbeatPort;
+        mListener = listener;
+        mBufferPool = new BufferPool(serverIps.length);
+
+        for (int i = 0; i < serverIps.length; ++i) {
+            mListener.onSourceDisconnected(i);
+        }
+    }
+
+    /**
+     * Account the pooled receive arrays of this receiver in the given budget.
+     * Has to be called before the receiver is started.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Record the traffic of every source into the given capture.
+     * Has to be called before the receiver is started.
+     */
+    public void setTrafficCapture(TrafficCapture capture) {
+        mCapture = capture;
+    }
+
+    @Override
+    protected void onCancel() {
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    protected void runTask() {
+        Source[] sources = new Source[mServerIps.length];
+        for (int i = 0; i < sources.length; ++i) {
+            sources[i] = new Source(i, mServerIps[i]);
+        }
+        if (mMemoryBudget != null) {
+            mMemoryBudget.register(mBufferPool);
+        }
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            // Publish the selector before checking the cancel flag, so that
+            // onCancel() either sees the selector or the loop sees the flag.
+            mSelector = selector;
+            while (!isCancelled()) {
+                long timeout = connectSources(selector, sources);
+                selector.select(timeout);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException e) {
+            mEventLog.record(EventLog.Event.CONNECTION_ERROR, e);
+        } finally {
+            mSelector = null;
+            for (Source source : sources) {
+                disconnect(source);
+            }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (mMemoryBudget != null) {
+            mMemoryBudget.unregister(mBufferPool);
+        }
+        mBufferPool.trimMemory();
+        mEventLog.record(EventLog.Event.RECEIVER_FINISHED);
+    }
+
+    /**
+     * Start connecting all sources that are not connected and whose reconnect delay is over.
+     * @return the time in milliseconds until the next source is due for a reconnect,
+     * or 0 if no reconnect is pending.
+     */
+    private long connectSources(Selector selector, Source[] sources) {
+        long now = System.nanoTime() / 1000000;
+        long timeout = 0;
+        for (Source source : sources) {
+            if (source.imageChannel == null && now >= source.reconnectAtMillis) {
+                connect(selector, source);
+            }
+            if (source.imageChannel == null) {
+                long delay = Math.max(1, source.reconnectAtMillis - now);
+                timeout = timeout == 0 ? delay : Math.min(timeout, delay);
+            }
+        }
+        return timeout;
+    }
+
+    private void connect(Selector selector, Source source) {
+        mEventLog.record(EventLog.Event.SOURCE_CONNECTING, source.index);
+        try {
+            InetAddress serverAddr = InetAddress.getByName(source.serverIp);
+            source.imageChannel = openChannel(selector, source,
+                    new InetSocketAddress(serverAddr, mImagePort));
+            source.heartbeatChannel = openChannel(selector, source,
+                    new InetSocketAddress(serverAddr, mHeartbeatPort));
+            checkConnected(source);
+        } catch (IOException e) {
+            mEventLog.record(EventLog.Event.SOURCE_ERROR, source.index, e);
+            disconnect(source);
+        }
+    }
+
+    private SocketChannel openChannel(Selector selector, Source source, InetSocketAddress address)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                channel.register(selector, SelectionKey.OP_READ, source);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, source);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void handleKey(SelectionKey key) {
+        Source source = (Source) key.attachment();
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                checkConnected(source);
+            } else if (key.isReadable()) {
+                if (channel == source.imageChannel) {
+                    readImageChannel(source);
+                } else {
+                    readHeartbeatChannel(source);
+                }
+            }
+        } catch (IOException e) {
+            mEventLog.record(EventLog.Event.SOURCE_ERROR, source.index, e);
+            disconnect(source);
+        }
+    }
+
+    private void checkConnected(Source source) {
+        if (!source.connected
+                && source.imageChannel.isConnected()
+                && source.heartbeatChannel.isConnected()) {
+            source.connected = true;
+            mEventLog.record(EventLog.Event.SOURCE_CONNECTED, source.index);
+            mListener.onSourceConnected(source.index);
+        }
+    }
+
+    /**
+     * Read once from the image channel of the source and parse the data.
+     * Reading only once per selection keeps a busy source from starving the others.
+     */
+    private void readImageChannel(Source source) throws IOException {
+        mReadBuffer.clear();
+        if (source.imageChannel.read(mReadBuffer) == -1) {
+            throw new EOFException("Image channel was closed.");
+        }
+        mReadBuffer.flip();
+        if (mCapture != null) {
+            mCapture.record(TrafficCapture.getChannel(TrafficCapture.CHANNEL_IMAGE, source.index),
+                    mReadBuffer);
+        }
+        while (mReadBuffer.hasRemaining()) {
+            parse(source, mReadBuffer);
+        }
+    }
+
+    private void readHeartbeatChannel(Source source) throws IOException {
+        mReadBuffer.clear();
+        if (source.heartbeatChannel.read(mReadBuffer) == -1) {
+            throw new EOFException("Heartbeat channel was closed.");
+        }
+        if (mCapture != null) {
+            mReadBuffer.flip();
+            mCapture.record(TrafficCapture.getChannel(TrafficCapture.CHANNEL_HEARTBEAT, source.index),
+                    mReadBuffer);
+        }
+    }
+
+    /**
+     * Consume data from the buffer according to the parser state of the source.
+     *
+     * @throws ProtocolException if the source sent an invalid image size.
+     */
+    private void parse(Source source, ByteBuffer data) throws ProtocolException {
+        switch (source.state) {
+            case STATE_COMMAND:
+                byte command = data.get();
+                if (command == ImageProtocol.COMMAND_TAKEN) {
+                    mEventLog.record(EventLog.Event.COMMAND_TAKEN, source.index);
+                    mListener.onImageTaken(source.index);
+                } else if (command == ImageProtocol.COMMAND_DATA) {
+                    mEventLog.record(EventLog.Event.COMMAND_DATA, source.index);
+                    source.sizeBuffer.clear();
+                    source.state = STATE_SIZE;
+                } else {
+                    mEventLog.record(EventLog.Event.INVALID_COMMAND, command);
+                }
+                break;
+            case STATE_SIZE:
+                while (source.sizeBuffer.hasRemaining() && data.hasRemaining()) {
+                    source.sizeBuffer.put(data.get());
+                }
+                if (!source.sizeBuffer.hasRemaining()) {
+                    source.sizeBuffer.flip();
+                    int imageSize = ImageProtocol.decodeImageSize(source.sizeBuffer);
+                    mEventLog.record(EventLog.Event.IMAGE_RECEIVING, imageSize);
+                    if (!ImageProtocol.isValidImageSize(imageSize)) {
+                        // The stream of the source cannot be parsed any further.
+                        mEventLog.record(EventLog.Event.INVALID_COMMAND, ImageProtocol.COMMAND_DATA);
+                        throw new ProtocolException("Invalid image size " + imageSize);
+                    }
+                    source.payload = obtainBuffer(imageSize);
+                    source.payloadLength = imageSize;
+                    source.payloadPosition = 0;
+                    source.state = STATE_PAYLOAD;
+                    deliverIfComplete(source);
+                }
+                break;
+            case STATE_PAYLOAD:
+                int length = Math.min(data.remaining(), source.payloadLength - source.payloadPosition);
+                data.get(source.payload, source.payloadPosition, length);
+                source.payloadPosition += length;
+                deliverIfComplete(source);
+                break;
+        }
+    }
+
+    /**
+     * Return an array for an image of imageSize bytes, from the pool if possible.
+     */
+    private byte[] obtainBuffer(int imageSize) {
+        byte[] buffer = mBufferPool.poll(imageSize);
+        if (buffer != null) {
+            return buffer;
+        }
+        if (mMemoryBudget != null && !mMemoryBudget.ensureAvailable(imageSize, mBufferPool)) {
+            // The image has to be received anyway, but without keeping spare arrays around.
+            mBufferPool.trimMemory();
+            mEventLog.record(EventLog.Event.RECEIVE_BUFFER_OVER_BUDGET, imageSize);
+        }
+        return mBufferPool.acquire(imageSize);
+    }
+
+    private void deliverIfComplete(Source source) {
+        if (source.payloadPosition < source.payloadLength) {
+            return;
+        }
+        ImageBuffer image = new ImageBuffer(mBufferPool, source.payload, source.payloadLength);
+        source.payload = null;
+        source.state = STATE_COMMAND;
+        mEventLog.record(EventLog.Event.IMAGE_RECEIVED, image.getLength());
+        try {
+            mListener.onImageReceived(source.index, image);
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Close both channels of the source, reset its parser and schedule a reconnect.
+     */
+    private void disconnect(Source source) {
+        closeQuietly(source.imageChannel);
+        closeQuietly(source.heartbeatChannel);
+        source.imageChannel = null;
+        source.heartbeatChannel = null;
+        source.state = STATE_COMMAND;
+        if (source.payload != null) {
+            mBufferPool.release(source.payload);
+            source.payload = null;
+        }
+        source.reconnectAtMillis = System.nanoTime() / 1000000 + RECONNECT_DELAY_MILLIS;
+        if (source.connected) {
+            source.connected = false;
+            mEventLog.record(EventLog.Event.SOURCE_DISCONNECTED, source.index);
+            mListener.onSourceDisconnected(source.index);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Receive commands and image data via UDP multicast, as an alternative to ImageReceiver.
+ *
+ * The images are sent by a MulticastImageSender as numbered chunks with parity chunks,
+ * see MulticastProtocol, and are reassembled into pooled buffers by an ImageReassembler.
+ * The listener receives the image in its reassembly buffer, without a copy.
+ * If an image cannot be completed from the datagrams, because a newer image starts or
+ * no datagram arrived for FALLBACK_DELAY_MILLIS, the missing ranges are fetched from a
+ * RangeServer via TCP. Without a fallback server, such images are dropped.
+ *
+ * The listener is notified as connected as soon as the multicast group has been joined.
+ *
+ * The class is implemented as a TransportTask in order to easily run in the background.
+ * As soon as the task is cancelled via cancel(), the background thread ends.
+ */
+public class MulticastImageReceiver extends TransportTask {
+    private static final int SOCKET_TIMEOUT_MILLIS = 100;
+    private static final long FALLBACK_DELAY_MILLIS = 300;
+    private static final int FALLBACK_CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    private static final long RETRY_DELAY_MILLIS = 500;
+
+    private final EventLog mEventLog = EventLog.get();
+    private final InetAddress mGroup;
+    private final int mPort;
+    private final NetworkInterface mNetworkInterface;
+    private final String mFallbackHost;
+    private final int mFallbackPort;
+    private final ImageReceivedListener mImageListener;
+    private final NetworkConnectionStatusListener mNetworkListener;
+    /** The parity buffer, the buffer of the image being reassembled and that of the last image. */
+    private final BufferPool mBufferPool = new BufferPool(3);
+    private final ImageReassembler mReassembler = new ImageReassembler(mBufferPool);
+    private MemoryBudget mMemoryBudget;
+
+    /**
+     * Create a new receiver. After creating the instance, the receiver can be
+     * started with TransportExecutor.execute().
+     *
+     * @param group multicast group on which the images are sent.
+     * @param port UDP port on which the images are sent.
+     * @param networkInterface interface to receive on, or null for the default interface.
+     * @param fallbackHost host of the RangeServer, or null to drop incomplete images.
+     * @param fallbackPort TCP port of the RangeServer.
+     * @param imageListener class that is notified about received image data.
+     * @param networkListener class that is notified when the group has been joined or left.
+     */
+    public MulticastImageReceiver(InetAddress group, int port, NetworkInterface networkInterface,
+                                  String fallbackHost, int fallbackPort,
+                                  ImageReceivedListener imageListener,
+                                  NetworkConnectionStatusListener networkListener) {
+        super("MulticastImageReceiver", PRIORITY_RECEIVE);
+        mGroup = group;
+        mPort = port;
+        mNetworkInterface = networkInterface;
+        mFallbackHost = fallbackHost;
+        mFallbackPort = fallbackPort;
+        mImageListener = imageListener;
+        mNetworkListener = networkListener;
+
+        mNetworkListener.onDisconnected();
+    }
+
+    /**
+     * Account the reassembly buffers of this receiver in the given budget.
+     * Has to be called before the receiver is started.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    @Override
+    protected void runTask() {
+        if (mMemoryBudget != null) {
+            mMemoryBudget.register(mBufferPool);
+        }
+        while (!isCancelled()) {
+            MulticastSocket socket = null;
+            try {
+                socket = track(new MulticastSocket(mPort));
+                socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+                socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+                if (mNetworkInterface != null) {
+                    socket.setNetworkInterface(mNetworkInterface);
+                }
+                socket.joinGroup(mGroup);
+                mEventLog.record(EventLog.Event.MULTICAST_JOINED);
+                mNetworkListener.onConnected();
+                receive(socket);
+            } catch (IOException e) {
+                if (!isCancelled()) {
+                    mEventLog.record(EventLog.Event.MULTICAST_ERROR, e);
+                }
+            } finally {
+                close(socket);
+            }
+            mReassembler.abandon();
+            mNetworkListener.onDisconnected();
+            pause(RETRY_DELAY_MILLIS);
+        }
+        if (mMemoryBudget != null) {
+            mMemoryBudget.unregister(mBufferPool);
+        }
+        mEventLog.record(EventLog.Event.RECEIVER_FINISHED);
+    }
+
+    private void receive(MulticastSocket socket) throws IOException {
+        byte[] packetData = new byte[MulticastProtocol.MAX_PACKET_LENGTH];
+        DatagramPacket packet = new DatagramPacket(packetData, packetData.length);
+        int lastTakenSession = 0;
+        int lastTakenId = -1;
+        long lastPacketMillis = 0;
+        while (!isCancelled()) {
+            packet.setLength(packetData.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                if (mReassembler.isActive()
+                        && System.nanoTime() / 1000000 - lastPacketMillis > FALLBACK_DELAY_MILLIS) {
+                    completeFromFallback();
+                }
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(packetData, 0, packet.getLength());
+            if (!MulticastProtocol.isValid(buffer)) {
+                continue;
+            }
+            if (!MulticastProtocol.isWellFormed(buffer)) {
+                mEventLog.record(EventLog.Event.MULTICAST_INVALID_PACKET, packet.getLength());
+                continue;
+            }
+            lastPacketMillis = System.nanoTime() / 1000000;
+            int session = MulticastProtocol.getSession(buffer);
+            int imageId = MulticastProtocol.getImageId(buffer);
+            if (MulticastProtocol.getType(buffer) == MulticastProtocol.TYPE_TAKEN) {
+                if (session != lastTakenSession || imageId != lastTakenId) {
+                    lastTakenSession = session;
+                    lastTakenId = imageId;
+                    mEventLog.record(EventLog.Event.COMMAND_TAKEN);
+                    mImageListener.onImageTaken();
+                }
+                continue;
+            }
+            if (mReassembler.isActive()
+                    && (session != mReassembler.getSession() || imageId != mReassembler.getImageId())) {
+                // A new image starts, the current one will not receive any more datagrams.
+                completeFromFallback();
+            }
+            ImageBuffer image = mReassembler.onPacket(buffer);
+            if (image != null) {
+                deliver(image);
+            }
+        }
+    }
+
+    private void deliver(ImageBuffer image) {
+        if (mReassembler.getRecoveredChunks() > 0) {
+            mEventLog.record(EventLog.Event.MULTICAST_FEC_RECOVERED, mReassembler.getRecoveredChunks());
+        }
+        mEventLog.record(EventLog.Event.MULTICAST_IMAGE_RECEIVED, image.getLength());
+        try {
+            mImageListener.onImageReceived(image);
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Fetch the ranges of the current image that could neither be received nor recovered.
+     */
+    private void completeFromFallback() {
+        List<int[]> ranges = mReassembler.getMissingRanges();
+        if (mFallbackHost == null) {
+            mEventLog.record(EventLog.Event.MULTICAST_IMAGE_LOST, ranges.size());
+            mReassembler.abandon();
+            return;
+        }
+        Socket socket = track(new Socket());
+        try {
+            socket.connect(new InetSocketAddress(mFallbackHost, mFallbackPort),
+                    FALLBACK_CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(FALLBACK_CONNECT_TIMEOUT_MILLIS);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            // Send all requests at once, the answers arrive in the same order.
+            for (int[] range : ranges) {
+                output.writeInt(mReassembler.getSession());
+                output.writeInt(mReassembler.getImageId());
+                output.writeInt(range[0]);
+                output.writeInt(range[1]);
+            }
+            output.flush();
+            ImageBuffer image = null;
+            for (int[] range : ranges) {
+                if (input.readByte() != RangeServer.RANGE_OK) {
+                    break;
+                }
+                input.readFully(mReassembler.getBuffer(), range[0], range[1]);
+                mEventLog.record(EventLog.Event.MULTICAST_FALLBACK, range[1]);
+                image = mReassembler.markRangeReceived(range[0], range[1]);
+            }
+            if (image != null) {
+                deliver(image);
+            } else {
+                mEventLog.record(EventLog.Event.MULTICAST_IMAGE_LOST, ranges.size());
+            }
+        } catch (IOException e) {
+            if (!isCancelled()) {
+                mEventLog.record(EventLog.Event.MULTICAST_ERROR, e);
+            }
+        } finally {
+            mReassembler.abandon();
+            close(socket);
+        }
+    }
+}
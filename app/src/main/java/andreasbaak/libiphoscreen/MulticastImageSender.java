@@ -0,0 +1,199 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Broadcasts the images of this screen via UDP multicast, see MulticastProtocol.
+ *
+ * Each image is sent exactly once, no matter how many screens are listening, so the
+ * airtime per image stays constant. After every group of chunks, the parity chunk of
+ * the group is sent and the sender pauses until the group has taken its time at the
+ * configured rate, see setRate(), so that the access point and the receive buffers of
+ * the screens are not flooded.
+ *
+ * The sender is fed by the ImageReceivedListener callbacks, typically of a screen that
+ * runs as a relay. If a RangeServer is given, it is updated with every image, so that
+ * screens can fetch the ranges they could not recover.
+ *
+ * The class is implemented as a TransportTask in order to easily run in the background.
+ * As soon as the task is cancelled via cancel(), the background thread ends.
+ */
+public class MulticastImageSender extends TransportTask implements ImageReceivedListener {
+    /** The taken datagram is tiny and not protected by parity, hence it is repeated. */
+    private static final int TAKEN_REPETITIONS = 3;
+    private static final int TIME_TO_LIVE = 1;
+    /**
+     * Access points send multicast at a basic rate, because they cannot adapt the rate to
+     * all receivers at once. 5 Mbit/s stays below the lowest basic rate of 802.11g and
+     * 802.11a/n networks, 6 Mbit/s. Networks that still allow 802.11b clients may send
+     * multicast at 1 or 2 Mbit/s and need a lower rate, while access points that convert
+     * multicast to unicast allow a higher one.
+     */
+    static final long DEFAULT_RATE = 5 * 1000 * 1000 / 8;
+
+    /** Queued command that stands for COMMAND_TAKEN. */
+    private static final byte[] TAKEN = new byte[0];
+    /** Queued by onCancel() in order to wake up the sender. */
+    private static final byte[] CANCELLED = new byte[0];
+
+    private final EventLog mEventLog = EventLog.get();
+    private final InetAddress mGroup;
+    private final int mPort;
+    private final NetworkInterface mNetworkInterface;
+    private final RangeServer mRangeServer;
+    private final LinkedBlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<>();
+    /**
+     * Tells the receivers that the image ids start over, since a restarted
+     * sender would otherwise look like a sender of very old images.
+     */
+    private final int mSession = new Random().nextInt();
+    private int mNextImageId;
+    private volatile long mRate = DEFAULT_RATE;
+
+    /**
+     * @param group multicast group to which the images are sent.
+     * @param port UDP port to which the images are sent.
+     * @param networkInterface interface to send on, or null for the default interface.
+     * @param rangeServer server for the TCP fallback, or null.
+     */
+    public MulticastImageSender(InetAddress group, int port, NetworkInterface networkInterface,
+                                RangeServer rangeServer) {
+        super("MulticastImageSender", PRIORITY_SERVE);
+        mGroup = group;
+        mPort = port;
+        mNetworkInterface = networkInterface;
+        mRangeServer = rangeServer;
+    }
+
+    /**
+     * Send the datagrams of an image at the given number of bytes per second, including
+     * the parity and the headers, or as fast as possible if 0. Should be well below the
+     * rate at which the access point sends multicast, see DEFAULT_RATE.
+     */
+    public void setRate(long bytesPerSecond) {
+        mRate = bytesPerSecond;
+    }
+
+    @Override
+    public void onImageTaken() {
+        mQueue.add(TAKEN);
+    }
+
+    /**
+     * The image is copied, since the range server keeps it until later images
+     * have been sent, which would hold an array of the receive pool for too long.
+     */
+    @Override
+    public void onImageReceived(ImageBuffer image) {
+        mQueue.add(Arrays.copyOf(image.getData(), image.getLength()));
+    }
+
+    @Override
+    protected void onCancel() {
+        mQueue.add(CANCELLED);
+    }
+
+    @Override
+    protected void runTask() {
+        MulticastSocket socket = null;
+        try {
+            socket = track(new MulticastSocket());
+            socket.setTimeToLive(TIME_TO_LIVE);
+            if (mNetworkInterface != null) {
+                socket.setNetworkInterface(mNetworkInterface);
+            }
+            ByteBuffer packetBuffer = ByteBuffer.allocate(MulticastProtocol.MAX_PACKET_LENGTH);
+            DatagramPacket packet = new DatagramPacket(packetBuffer.array(), 0, mGroup, mPort);
+            while (!isCancelled()) {
+                byte[] image = mQueue.take();
+                if (image == CANCELLED) {
+                    break;
+                }
+                int imageId = mNextImageId++;
+                if (image == TAKEN) {
+                    MulticastProtocol.writeTakenPacket(packetBuffer, mSession, imageId);
+                    for (int i = 0; i < TAKEN_REPETITIONS; ++i) {
+                        send(socket, packet, packetBuffer);
+                    }
+                } else {
+                    sendImage(socket, packet, packetBuffer, imageId, image);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The executor gave up on cooperative cancellation.
+        } catch (IOException e) {
+            if (!isCancelled()) {
+                mEventLog.record(EventLog.Event.MULTICAST_ERROR, e);
+            }
+        } finally {
+            close(socket);
+        }
+    }
+
+    private void sendImage(MulticastSocket socket, DatagramPacket packet, ByteBuffer packetBuffer,
+                           int imageId, byte[] image) throws IOException {
+        if (mRangeServer != null) {
+            mRangeServer.setLatestImage(mSession, imageId, image);
+        }
+        int chunkCount = MulticastProtocol.getChunkCount(image.length);
+        int groupCount = MulticastProtocol.getGroupCount(chunkCount);
+        long rate = mRate;
+        long start = System.nanoTime();
+        long sentBytes = 0;
+        for (int group = 0; group < groupCount && !isCancelled(); ++group) {
+            int lastChunk = Math.min((group + 1) * MulticastProtocol.GROUP_SIZE, chunkCount);
+            for (int chunk = group * MulticastProtocol.GROUP_SIZE; chunk < lastChunk; ++chunk) {
+                MulticastProtocol.writeDataPacket(packetBuffer, mSession, imageId, image, chunk);
+                sentBytes += send(socket, packet, packetBuffer);
+            }
+            MulticastProtocol.writeParityPacket(packetBuffer, mSession, imageId, image, group);
+            sentBytes += send(socket, packet, packetBuffer);
+            if (rate > 0) {
+                // Wait until the datagrams sent so far would have taken their time at the rate.
+                long dueNanos = sentBytes * 1000000000L / rate;
+                LockSupport.parkNanos(dueNanos - (System.nanoTime() - start));
+            }
+        }
+        mEventLog.record(EventLog.Event.MULTICAST_IMAGE_SENT, image.length);
+    }
+
+    /**
+     * @return the number of bytes sent.
+     */
+    private static int send(MulticastSocket socket, DatagramPacket packet, ByteBuffer packetBuffer)
+            throws IOException {
+        packet.setLength(packetBuffer.limit());
+        socket.send(packet);
+        return packet.getLength();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the datagrams that are used to broadcast images via UDP multicast.
+ *
+ * Every datagram starts with a header of HEADER_LENGTH bytes in network byte order:
+ * <ul>
+ *     <li>the magic number MAGIC (four bytes),</li>
+ *     <li>the type TYPE_TAKEN, TYPE_DATA or TYPE_PARITY (one byte),</li>
+ *     <li>the session of the sender, a random number that is chosen whenever
+ *     the sender is started (four bytes),</li>
+ *     <li>the id of the image, which increases with every image of the session (four bytes),</li>
+ *     <li>the size of the image in bytes (four bytes),</li>
+ *     <li>the index of the chunk for TYPE_DATA or the index of the group
+ *     for TYPE_PARITY (four bytes).</li>
+ * </ul>
+ * An image is split into chunks of CHUNK_SIZE bytes. Every GROUP_SIZE consecutive chunks
+ * form a group, which is protected by a parity chunk: the XOR of all chunks of the group,
+ * each padded with zeros to CHUNK_SIZE. A single lost chunk per group can therefore be
+ * recovered without retransmission.
+ */
+final class MulticastProtocol {
+    static final int MAGIC = 0x4c495048; // "LIPH"
+
+    static final byte TYPE_TAKEN = 1;
+    static final byte TYPE_DATA = 2;
+    static final byte TYPE_PARITY = 3;
+
+    static final int HEADER_LENGTH = 21;
+    /** Payload size of a datagram, chosen to stay below the MTU of Wi-Fi and Ethernet. */
+    static final int CHUNK_SIZE = 1200;
+    static final int GROUP_SIZE = 8;
+    static final int MAX_PACKET_LENGTH = HEADER_LENGTH + CHUNK_SIZE;
+    /** Larger sizes are not trusted, since the receiver allocates a buffer of this size. */
+    static final int MAX_IMAGE_SIZE = 64 * 1024 * 1024;
+
+    private static final int OFFSET_TYPE = 4;
+    private static final int OFFSET_SESSION = 5;
+    private static final int OFFSET_IMAGE_ID = 9;
+    private static final int OFFSET_IMAGE_SIZE = 13;
+    private static final int OFFSET_INDEX = 17;
+
+    private MulticastProtocol() {
+    }
+
+    static int getChunkCount(int imageSize) {
+        return (imageSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    static int getGroupCount(int chunkCount) {
+        return (chunkCount + GROUP_SIZE - 1) / GROUP_SIZE;
+    }
+
+    /**
+     * @return the number of image bytes in the given chunk; only the last chunk can be shorter.
+     */
+    static int getChunkLength(int imageSize, int chunk) {
+        return Math.min(CHUNK_SIZE, imageSize - chunk * CHUNK_SIZE);
+    }
+
+    static boolean isValid(ByteBuffer packet) {
+        return packet.remaining() >= HEADER_LENGTH && packet.getInt(packet.position()) == MAGIC;
+    }
+
+    /**
+     * Check the header of a valid packet against the length of the packet.
+     * @return true if the payload of the packet can be read according to its header.
+     */
+    static boolean isWellFormed(ByteBuffer packet) {
+        byte type = getType(packet);
+        if (type == TYPE_TAKEN) {
+            return true;
+        }
+        int imageSize = getImageSize(packet);
+        int index = getIndex(packet);
+        if (imageSize <= 0 || imageSize > MAX_IMAGE_SIZE || index < 0) {
+            return false;
+        }
+        int chunkCount = getChunkCount(imageSize);
+        int payloadLength = packet.remaining() - HEADER_LENGTH;
+        if (type == TYPE_DATA) {
+            return index < chunkCount && payloadLength >= getChunkLength(imageSize, index);
+        }
+        if (type == TYPE_PARITY) {
+            return index < getGroupCount(chunkCount) && payloadLength >= CHUNK_SIZE;
+        }
+        return false;
+    }
+
+    static byte getType(ByteBuffer packet) {
+        return packet.get(packet.position() + OFFSET_TYPE);
+    }
+
+    static int getSession(ByteBuffer packet) {
+        return packet.getInt(packet.position() + OFFSET_SESSION);
+    }
+
+    static int getImageId(ByteBuffer packet) {
+        return packet.getInt(packet.position() + OFFSET_IMAGE_ID);
+    }
+
+    static int getImageSize(ByteBuffer packet) {
+        return packet.getInt(packet.position() + OFFSET_IMAGE_SIZE);
+    }
+
+    static int getIndex(ByteBuffer packet) {
+        return packet.getInt(packet.position() + OFFSET_INDEX);
+    }
+
+    private static void writeHeader(ByteBuffer out, byte type, int session, int imageId,
+                                    int imageSize, int index) {
+        out.clear();
+        out.putInt(MAGIC);
+        out.put(type);
+        out.putInt(session);
+        out.putInt(imageId);
+        out.putInt(imageSize);
+        out.putInt(index);
+    }
+
+    /**
+     * Write the datagram that announces that an image has been taken. The out buffer is flipped.
+     */
+    static void writeTakenPacket(ByteBuffer out, int session, int imageId) {
+        writeHeader(out, TYPE_TAKEN, session, imageId, 0, 0);
+        out.flip();
+    }
+
+    /**
+     * Write the datagram that carries the given chunk of the image. The out buffer is flipped.
+     */
+    static void writeDataPacket(ByteBuffer out, int session, int imageId, byte[] image, int chunk) {
+        writeHeader(out, TYPE_DATA, session, imageId, image.length, chunk);
+        out.put(image, chunk * CHUNK_SIZE, getChunkLength(image.length, chunk));
+        out.flip();
+    }
+
+    /**
+     * Write the datagram that carries the parity of the given group. The out buffer is flipped.
+     */
+    static void writeParityPacket(ByteBuffer out, int session, int imageId, byte[] image, int group) {
+        writeHeader(out, TYPE_PARITY, session, imageId, image.length, group);
+        int parityStart = out.position();
+        for (int i = 0; i < CHUNK_SIZE; ++i) {
+            out.put(parityStart + i, (byte) 0);
+        }
+        int chunkCount = getChunkCount(image.length);
+        int lastChunk = Math.min((group + 1) * GROUP_SIZE, chunkCount);
+        for (int chunk = group * GROUP_SIZE; chunk < lastChunk; ++chunk) {
+            int start = chunk * CHUNK_SIZE;
+            int length = getChunkLength(image.length, chunk);
+            for (int i = 0; i < length; ++i) {
+                out.put(parityStart + i, (byte) (out.get(parityStart + i) ^ image[start + i]));
+            }
+        }
+        out.position(parityStart + CHUNK_SIZE);
+        out.flip();
+    }
+}
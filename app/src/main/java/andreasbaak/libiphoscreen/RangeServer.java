@@ -0,0 +1,158 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves parts of the latest multicast images via TCP, so that screens that lost more
+ * datagrams than forward error correction can recover are able to fetch the missing ranges.
+ *
+ * A client sends any number of requests, each consisting of the session and the id of the
+ * image, the offset and the length of the range as integers in network byte order, see
+ * MulticastProtocol for the session and the id. For each request, the server
+ * answers with RANGE_OK followed by the requested bytes, or with RANGE_UNAVAILABLE if the
+ * image is none of the RETAINED_IMAGES latest ones or the range is out of bounds.
+ *
+ * A receiver usually notices that an image is incomplete when the datagrams of the next
+ * image arrive, by which time the sender has already made the next image available.
+ * Hence the previous image is retained as well.
+ *
+ * Clients are served one after the other, since this is only a fallback path.
+ *
+ * The class is implemented as a TransportTask in order to easily run in the background.
+ * As soon as the task is cancelled via cancel(), the background thread ends.
+ */
+public class RangeServer extends TransportTask {
+    static final byte RANGE_OK = 1;
+    static final byte RANGE_UNAVAILABLE = 0;
+
+    private static final int CLIENT_TIMEOUT_MILLIS = 2000;
+    /** Number of images that are served, the latest one and the one before it. */
+    static final int RETAINED_IMAGES = 2;
+
+    /**
+     * An image together with the session and the id under which it has been multicast.
+     */
+    private static class Image {
+        final int session;
+        final int id;
+        final byte[] data;
+
+        Image(int session, int id, byte[] data) {
+            this.session = session;
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private final EventLog mEventLog = EventLog.get();
+    private final int mPort;
+    /** The latest images, newest first. */
+    private final Image[] mImages = new Image[RETAINED_IMAGES];
+
+    public RangeServer(int port) {
+        super("RangeServer", PRIORITY_BACKGROUND);
+        mPort = port;
+    }
+
+    /**
+     * Make the given image available for range requests. Of the older images,
+     * only the RETAINED_IMAGES - 1 latest ones are still served.
+     */
+    public synchronized void setLatestImage(int session, int imageId, byte[] image) {
+        System.arraycopy(mImages, 0, mImages, 1, mImages.length - 1);
+        mImages[0] = new Image(session, imageId, image);
+    }
+
+    /**
+     * @return the retained image with the given session and id, or null if there is none.
+     */
+    private synchronized Image findImage(int session, int imageId) {
+        for (Image image : mImages) {
+            if (image != null && image.session == session && image.id == imageId) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void runTask() {
+        ServerSocketChannel server = null;
+        try {
+            // cancel() closes the tracked channels, which ends a blocking accept or read.
+            server = track(ServerSocketChannel.open());
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(mPort));
+            while (!isCancelled()) {
+                SocketChannel client = track(server.accept());
+                try {
+                    serve(client);
+                } catch (EOFException e) {
+                    // The client has fetched all ranges.
+                } catch (IOException e) {
+                    if (!isCancelled()) {
+                        mEventLog.record(EventLog.Event.RANGE_ERROR, e);
+                    }
+                } finally {
+                    close(client);
+                }
+            }
+        } catch (IOException e) {
+            if (!isCancelled()) {
+                mEventLog.record(EventLog.Event.RANGE_ERROR, e);
+            }
+        } finally {
+            close(server);
+        }
+    }
+
+    private void serve(SocketChannel client) throws IOException {
+        client.socket().setSoTimeout(CLIENT_TIMEOUT_MILLIS);
+        DataInputStream input = new DataInputStream(client.socket().getInputStream());
+        DataOutputStream output = new DataOutputStream(client.socket().getOutputStream());
+        while (!isCancelled()) {
+            int session = input.readInt();
+            int imageId = input.readInt();
+            int offset = input.readInt();
+            int length = input.readInt();
+            Image image = findImage(session, imageId);
+            // The values come from the client, so offset + length could overflow.
+            if (image == null || offset < 0 || length < 0 || offset > image.data.length
+                    || length > image.data.length - offset) {
+                output.writeByte(RANGE_UNAVAILABLE);
+            } else {
+                mEventLog.record(EventLog.Event.RANGE_SERVED, length);
+                output.writeByte(RANGE_OK);
+                output.write(image.data, offset, length);
+            }
+            output.flush();
+        }
+    }
+}
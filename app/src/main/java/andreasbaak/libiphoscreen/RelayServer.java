@@ -0,0 +1,347 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Re-serves the images of this screen to other screens on the LAN.
+ *
+ * The relay speaks the same protocol as the libipho server on an image port and a
+ * heartbeat port, so that other screens can connect to the relay instead of the booth.
+ * It is fed by the ImageReceivedListener callbacks of this screen's ImageReceiver and
+ * forwards every command to all connected screens.
+ *
+ * The encoded image is never copied per client: each frame is wrapped once into
+ * read-only buffers, and every client gets its own view of these buffers that is
+ * written with a gathering write. A client that cannot keep up only gets the most
+ * recent frames, older frames that have not been started yet are dropped.
+ * A newly connected client immediately receives the latest image.
+ *
+ * The class is implemented as a TransportTask in order to easily run in the background.
+ * As soon as the task is cancelled via cancel(), all clients are disconnected
+ * and the background thread ends.
+ */
+public class RelayServer extends TransportTask implements ImageReceivedListener {
+    /** Maximum number of frames that are queued for a single client. */
+    private static final int MAX_PENDING_FRAMES = 4;
+
+    /**
+     * A command that is sent to all clients. The buffers are shared between all
+     * clients and must only be accessed through duplicates.
+     */
+    private static class Frame {
+        final ByteBuffer header;
+        final ByteBuffer payload;
+
+        Frame(ByteBuffer header, ByteBuffer payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        ByteBuffer[] duplicate() {
+            if (payload == null) {
+                return new ByteBuffer[] { header.duplicate() };
+            }
+            return new ByteBuffer[] { header.duplicate(), payload.duplicate() };
+        }
+    }
+
+    /**
+     * Frames that still have to be written to a client.
+     */
+    private static class Client {
+        final ArrayDeque<ByteBuffer[]> pending = new ArrayDeque<>();
+    }
+
+    private final EventLog mEventLog = EventLog.get();
+    private final int mImagePort;
+    private final int mHeartbeatPort;
+    private final ConcurrentLinkedQueue<Frame> mNewFrames = new ConcurrentLinkedQueue<>();
+    private volatile Selector mSelector;
+    private volatile int mClientCount;
+    private Frame mLatestImage;
+    private final List<SelectionKey> mImageClients = new ArrayList<>();
+
+    /**
+     * Create a new relay. The relay has to be started with TransportExecutor.execute().
+     *
+     * @param imagePort TCP port on which the images are served.
+     * @param heartbeatPort TCP port on which the heartbeat is served.
+     */
+    public RelayServer(int imagePort, int heartbeatPort) {
+        super("RelayServer", PRIORITY_SERVE);
+        mImagePort = imagePort;
+        mHeartbeatPort = heartbeatPort;
+    }
+
+    /**
+     * @return the number of screens that are currently connected to the image port.
+     */
+    public int getClientCount() {
+        return mClientCount;
+    }
+
+    @Override
+    public void onImageTaken() {
+        ByteBuffer header = ByteBuffer.allocate(1);
+        header.put(ImageProtocol.COMMAND_TAKEN);
+        header.flip();
+        publish(new Frame(header.asReadOnlyBuffer(), null));
+    }
+
+    /**
+     * The relay copies the image instead of retaining the buffer: it keeps the latest image
+     * for screens that connect later, and writes it at the pace of each screen, so holding
+     * on to the buffer would keep an array of the receive pool for an unbounded time.
+     */
+    @Override
+    public void onImageReceived(ImageBuffer image) {
+        byte[] data = Arrays.copyOf(image.getData(), image.getLength());
+        publish(new Frame(createDataHeader(data.length), ByteBuffer.wrap(data).asReadOnlyBuffer()));
+    }
+
+    /**
+     * Relay an image that has been received into a file.
+     * The file is memory-mapped, so the caller can delete it as soon as this function returns.
+     */
+    public void relayImageFile(File imageFile) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(imageFile, "r");
+            ByteBuffer payload = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            publish(new Frame(createDataHeader(payload.remaining()), payload));
+        } catch (IOException e) {
+            mEventLog.record(EventLog.Event.RELAY_ERROR, e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer createDataHeader(int imageSize) {
+        ByteBuffer header = ByteBuffer.allocate(1 + ImageProtocol.SIZE_LENGTH);
+        header.put(ImageProtocol.COMMAND_DATA);
+        ImageProtocol.encodeImageSize(imageSize, header);
+        header.flip();
+        return header.asReadOnlyBuffer();
+    }
+
+    private void publish(Frame frame) {
+        mNewFrames.add(frame);
+        wakeup();
+    }
+
+    private void wakeup() {
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    protected void onCancel() {
+        wakeup();
+    }
+
+    @Override
+    protected void runTask() {
+        Selector selector = null;
+        ServerSocketChannel imageServer = null;
+        ServerSocketChannel heartbeatServer = null;
+        try {
+            selector = Selector.open();
+            // Set before the loop checks the flag, so that a concurrent cancel() is never missed.
+            mSelector = selector;
+            imageServer = openServer(selector, mImagePort);
+            heartbeatServer = openServer(selector, mHeartbeatPort);
+            while (!isCancelled()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(selector, key, imageServer);
+                }
+                broadcastNewFrames();
+            }
+        } catch (IOException e) {
+            mEventLog.record(EventLog.Event.RELAY_ERROR, e);
+        } finally {
+            mSelector = null;
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+            mImageClients.clear();
+            mClientCount = 0;
+        }
+        mEventLog.record(EventLog.Event.RELAY_FINISHED);
+    }
+
+    private static ServerSocketChannel openServer(Selector selector, int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    private void handleKey(Selector selector, SelectionKey key, ServerSocketChannel imageServer) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                ServerSocketChannel server = (ServerSocketChannel) key.channel();
+                SocketChannel channel = server.accept();
+                if (channel != null) {
+                    accept(selector, channel, server == imageServer);
+                }
+            } else if (key.isReadable()) {
+                // Clients never send anything but EOF, on either port.
+                ByteBuffer discard = ByteBuffer.allocate(16);
+                if (((SocketChannel) key.channel()).read(discard) == -1) {
+                    disconnect(key);
+                }
+            } else if (key.isWritable()) {
+                write(key);
+            }
+        } catch (IOException e) {
+            mEventLog.record(EventLog.Event.RELAY_ERROR, e);
+            disconnect(key);
+        }
+    }
+
+    private void accept(Selector selector, SocketChannel channel, boolean isImageClient)
+            throws IOException {
+        channel.configureBlocking(false);
+        if (!isImageClient) {
+            channel.register(selector, SelectionKey.OP_READ);
+            return;
+        }
+        Client client = new Client();
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ, client);
+        mImageClients.add(key);
+        mClientCount = mImageClients.size();
+        mEventLog.record(EventLog.Event.RELAY_CLIENT_CONNECTED, mClientCount);
+        if (mLatestImage != null) {
+            enqueue(key, mLatestImage);
+        }
+    }
+
+    private void broadcastNewFrames() {
+        Frame frame;
+        while ((frame = mNewFrames.poll()) != null) {
+            if (frame.payload != null) {
+                mLatestImage = frame;
+            }
+            // Iterate over a copy since enqueue() may disconnect a client.
+            for (SelectionKey key : new ArrayList<>(mImageClients)) {
+                enqueue(key, frame);
+            }
+        }
+    }
+
+    private void enqueue(SelectionKey key, Frame frame) {
+        Client client = (Client) key.attachment();
+        client.pending.add(frame.duplicate());
+        while (client.pending.size() > MAX_PENDING_FRAMES) {
+            // Keep the first frame since it may have been written partially already.
+            ByteBuffer[] first = client.pending.poll();
+            client.pending.poll();
+            client.pending.addFirst(first);
+            mEventLog.record(EventLog.Event.RELAY_FRAME_DROPPED);
+        }
+        try {
+            write(key);
+        } catch (IOException e) {
+            mEventLog.record(EventLog.Event.RELAY_ERROR, e);
+            disconnect(key);
+        }
+    }
+
+    /**
+     * Write as many pending frames as the socket accepts without blocking.
+     * Waits for the socket to become writable again if not all frames could be written.
+     */
+    private void write(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (!client.pending.isEmpty()) {
+            ByteBuffer[] buffers = client.pending.peek();
+            channel.write(buffers);
+            if (buffers[buffers.length - 1].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            client.pending.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void disconnect(SelectionKey key) {
+        closeQuietly(key);
+        if (mImageClients.remove(key)) {
+            mClientCount = mImageClients.size();
+            mEventLog.record(EventLog.Event.RELAY_CLIENT_DISCONNECTED, mClientCount);
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+    }
+}
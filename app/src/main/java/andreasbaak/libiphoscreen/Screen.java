@@ -22,9 +22,11 @@ along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
 package andreasbaak.libiphoscreen;
 
 import android.annotation.SuppressLint;
+import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
+import android.graphics.ColorMatrix;
+import android.graphics.drawable.Drawable;
+import android.net.wifi.WifiManager;
 import android.os.Parcelable;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -36,8 +38,12 @@ import android.view.animation.AccelerateInterpolator;
 import android.view.animation.AlphaAnimation;
 import android.view.animation.Animation;
 import android.widget.ImageView;
+import android.widget.LinearLayout;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 /**
  * This activity shows the most recently taken image of the
@@ -73,6 +79,15 @@ public class Screen extends AppCompatActivity {
         }
     };
 
+    /**
+     * Number of threads for the receivers and servers. This is enough for a relay
+     * that also sends via multicast, plus the receivers of any receive mode.
+     */
+    private static final int TRANSPORT_THREADS = 5;
+    /** Time that onStop() waits for all receivers and servers to end. */
+    private static final long TRANSPORT_SHUTDOWN_MILLIS = 1000;
+    private TransportExecutor mTransportExecutor;
+
     private SizeAwareImageView mCameraImageView;
     private ImageView mCameraImageMask;
     private ImageReceiver mImageReceiver;
@@ -80,15 +95,144 @@ public class Screen extends AppCompatActivity {
     private ImageView mPleaseWaitView;
     private ImageView mNetworkConnectionStatusView;
 
-    /** Stores the current image on order to be able to restore it when the activity is
-     * recreated.
+    /**
+     * Owns the current image. It is published by the decode thread and leased by the
+     * image view and the saved instance state, see FrameHolder.
      */
-    private Bitmap currentImage;
+    private final FrameHolder mFrameHolder = new FrameHolder();
+    /** Lease on the image that is shown by the image view. Only used on the UI thread. */
+    private FrameHolder.Lease mDisplayedFrame;
+    /** Lease on the image that has been put into the saved instance state. */
+    private FrameHolder.Lease mSavedFrame;
+
+    /** Accounts for all bitmaps and buffers of the app, see MemoryBudget. */
+    private MemoryBudget mMemoryBudget;
+    private DecodeWorker mDecodeWorker;
+    /** Decodes the received images and publishes them to the frame holder. */
+    private FramePipeline mFramePipeline;
+    private final FramePipeline.Listener mFrameListener = new FramePipeline.Listener() {
+        @Override
+        public void onFrameReady(boolean published, final long receivedAt) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    hideWaitScreen();
+                    // Shows the latest frame, which may already be newer than the published one.
+                    showCurrentFrame();
+                    EventLog.get().record(EventLog.Event.IMAGE_DISPLAYED,
+                            (System.nanoTime() - receivedAt) / 1000);
+                }
+            });
+        }
+    };
+    /** Lets the image view release the frame that the budget has dropped. */
+    private final FrameHolder.TrimListener mFrameTrimListener = new FrameHolder.TrimListener() {
+        @Override
+        public void onFrameTrimmed() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    showCurrentFrame();
+                }
+            });
+        }
+    };
 
     private static final String SERVER_IP = "photobooth";
     private static final int SERVER_PORT = 1338;
     private static final int HEARTBEAT_PORT = 1339;
 
+    /**
+     * Intent extras that override SERVER_IP and SERVER_PORT, e.g. in order to point
+     * the screen to a test server. The heartbeat is expected on the next port.
+     * The host may be a comma-separated list of hosts, see mServerHosts.
+     */
+    public static final String EXTRA_SERVER_HOST = "andreasbaak.libiphoscreen.SERVER_HOST";
+    public static final String EXTRA_SERVER_PORT = "andreasbaak.libiphoscreen.SERVER_PORT";
+    /**
+     * All servers whose images are shown on this screen. If more than one server
+     * is configured, the screen runs in multi-source mode and shows the latest image
+     * of any of the servers, see MultiSourceReceiver.
+     */
+    private String[] mServerHosts;
+    private int mServerPort;
+
+    /**
+     * In multi-source mode, an image is shown at least for this time before the image
+     * of another source replaces it, see DisplayQueue.
+     */
+    private static final int MULTI_SOURCE_DWELL_MILLIS = 3000;
+    private MultiSourceReceiver mMultiSourceReceiver;
+    private DisplayQueue mDisplayQueue;
+    private DisplayTask mDisplayTask;
+    private LinearLayout mSourceStatusBar;
+
+    /**
+     * Re-serve all received images to other screens, which can then connect
+     * to this screen instead of the booth, see RelayServer.
+     */
+    private static final boolean RELAY_MODE = false;
+    private static final int RELAY_PORT = 1338;
+    private static final int RELAY_HEARTBEAT_PORT = 1339;
+    private volatile RelayServer mRelayServer;
+
+    /**
+     * Broadcast all received images via UDP multicast, typically from a relay screen,
+     * and serve missing ranges via TCP, see MulticastImageSender and RangeServer.
+     * Images that are spilled to a file are not broadcast.
+     */
+    private static final boolean MULTICAST_SEND = false;
+    /**
+     * Receive the images via UDP multicast instead of TCP. Missing ranges are fetched
+     * from the RangeServer on RANGE_HOST, see MulticastImageReceiver.
+     */
+    private static final boolean MULTICAST_RECEIVE = false;
+    private static final String MULTICAST_GROUP = "239.255.42.99";
+    private static final int MULTICAST_PORT = 1340;
+    /**
+     * Bytes per second at which images are multicast. Has to be below the rate at which
+     * the access point sends multicast, see MulticastImageSender.DEFAULT_RATE.
+     */
+    private static final long MULTICAST_RATE = MulticastImageSender.DEFAULT_RATE;
+    /**
+     * Host of the screen that runs with MULTICAST_SEND, since the RangeServer runs next to
+     * the sender and not on the booth. Set to null to drop incomplete images instead.
+     */
+    private static final String RANGE_HOST = "photobooth-relay";
+    private static final int RANGE_PORT = 1341;
+    private volatile MulticastImageSender mMulticastSender;
+    private RangeServer mRangeServer;
+    private MulticastImageReceiver mMulticastReceiver;
+    private WifiManager.MulticastLock mMulticastLock;
+
+    /**
+     * Images larger than this number of bytes are streamed into a temporary file
+     * and decoded from there, so that the payload never has to be held on the heap.
+     */
+    private static final int SPILL_THRESHOLD = 8 * 1024 * 1024;
+
+    private static final String EVENT_LOG_FILE = "events.txt";
+
+    /**
+     * Measure the network with the first large image from the server and size the receive
+     * buffer of the image channel accordingly, see TransportProfile.
+     */
+    private static final boolean TRANSPORT_AUTO_TUNE = true;
+
+    /**
+     * Color saturation of the displayed frames: 1 shows them as they are,
+     * 0 in black and white.
+     */
+    private static final float FRAME_SATURATION = 1.0f;
+
+    /**
+     * Record all received traffic into a capture file in the external files directory,
+     * so that it can be replayed later in order to reproduce performance issues.
+     */
+    private static final boolean CAPTURE_TRAFFIC = false;
+    private static final String CAPTURE_FILE = "traffic.capture";
+    private TrafficCapture mTrafficCapture;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -98,10 +242,51 @@ public class Screen extends AppCompatActivity {
         mCameraImageMask = (ImageView)findViewById(R.id.camera_image_mask);
         mPleaseWaitView = (ImageView)findViewById(R.id.camera_please_wait);
         mNetworkConnectionStatusView = (ImageView)findViewById(R.id.network_connection_status);
-
+        mSourceStatusBar = (LinearLayout)findViewById(R.id.source_status_bar);
+
+        Intent intent = getIntent();
+        String serverHosts = intent.hasExtra(EXTRA_SERVER_HOST)
+                ? intent.getStringExtra(EXTRA_SERVER_HOST) : SERVER_IP;
+        mServerHosts = serverHosts.trim().split("\\s*,\\s*");
+        mServerPort = intent.getIntExtra(EXTRA_SERVER_PORT, SERVER_PORT);
+
+        mMemoryBudget = MemoryBudget.fromContext(this);
+        mMemoryBudget.register(mFrameHolder);
+        mFrameHolder.setTrimListener(mFrameTrimListener);
+        mDecodeWorker = new DecodeWorker(mMemoryBudget);
+        mFrameHolder.setRecycler(mDecodeWorker);
+        mFramePipeline = new FramePipeline(mDecodeWorker, mFrameHolder, mFrameListener);
+        // The images are shown in full screen, there is no need to decode them any larger.
+        DisplayMetrics metrics = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getMetrics(metrics);
+        mDecodeWorker.setTargetSize(metrics.widthPixels, metrics.heightPixels);
+        setupFrameProcessing();
         restoreCurrentImage(savedInstanceState);
         alignSizeOfImageMask();
         scalePleaseWaitPicture();
+        setupEventLog();
+    }
+
+    /**
+     * Record the events of the receive path only in debug builds.
+     * A long press on the screen dumps the recorded events to a file
+     * in the external files directory of the app.
+     */
+    private void setupEventLog() {
+        EventLog.get().setLevel(BuildConfig.DEBUG ? Log.DEBUG : Log.WARN);
+        findViewById(R.id.screen_root).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                File file = new File(getExternalFilesDir(null), EVENT_LOG_FILE);
+                try {
+                    EventLog.get().dumpToFile(file);
+                    Log.i(CLASS_NAME, "Dumped the event log to " + file);
+                } catch (IOException e) {
+                    Log.e(CLASS_NAME, "Could not dump the event log to " + file, e);
+                }
+                return true;
+            }
+        });
     }
 
     private void scalePleaseWaitPicture() {
@@ -113,6 +298,31 @@ public class Screen extends AppCompatActivity {
         mPleaseWaitView.setPadding(w / 5, h / 5, h / 5, w / 5);
     }
 
+    /**
+     * Frames are cropped to the aspect ratio of the mask and processed to exactly the size
+     * of the image view, so that the view does not have to scale them when they are drawn.
+     */
+    private void setupFrameProcessing() {
+        Drawable mask = mCameraImageMask.getDrawable();
+        if (mask != null && mask.getIntrinsicWidth() > 0 && mask.getIntrinsicHeight() > 0) {
+            mDecodeWorker.setAspectRatio(mask.getIntrinsicWidth() / (float)mask.getIntrinsicHeight());
+        }
+        if (FRAME_SATURATION != 1.0f) {
+            ColorMatrix colorMatrix = new ColorMatrix();
+            colorMatrix.setSaturation(FRAME_SATURATION);
+            mDecodeWorker.setColorMatrix(colorMatrix);
+        }
+        mCameraImageView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                mDecodeWorker.setTargetSize(
+                        right - left - v.getPaddingLeft() - v.getPaddingRight(),
+                        bottom - top - v.getPaddingTop() - v.getPaddingBottom());
+            }
+        });
+    }
+
     private void alignSizeOfImageMask() {
         mCameraImageView.setResizeListener(new ResizeListener() {
             @Override
@@ -129,11 +339,26 @@ public class Screen extends AppCompatActivity {
             Parcelable img = savedInstanceState.getParcelable("currentImage");
             if (img != null) {
                 Log.d(CLASS_NAME, "Restoring image from the previous life cycle.");
-                mCameraImageView.setImageBitmap((Bitmap)img);
+                mFrameHolder.publish((Bitmap)img);
+                showCurrentFrame();
             }
         }
     }
 
+    /**
+     * Show the current frame of the frame holder, or nothing if there is none.
+     * The previously shown image is released only after the view shows the new one.
+     * Has to be called on the UI thread.
+     */
+    private void showCurrentFrame() {
+        FrameHolder.Lease previous = mDisplayedFrame;
+        mDisplayedFrame = mFrameHolder.acquire();
+        mCameraImageView.setImageBitmap(mDisplayedFrame == null ? null : mDisplayedFrame.getBitmap());
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
     private void hide() {
         // Schedule a runnable to remove the status and navigation bar after a delay
         mHideHandler.postDelayed(mGoFullscreen, UI_ANIMATION_DELAY);
@@ -153,9 +378,43 @@ public class Screen extends AppCompatActivity {
     public void onSaveInstanceState(Bundle savedInstanceState) {
         super.onSaveInstanceState(savedInstanceState);
 
-        // Store the currently shown image in order to restore the last view.
-        Log.d(CLASS_NAME, "Saving current image: " + currentImage);
-        savedInstanceState.putParcelable("currentImage", currentImage);
+        // Store the current image in order to restore the last view. The bundle may be
+        // parceled after this method returns, hence the image is leased until onDestroy().
+        if (mSavedFrame != null) {
+            mSavedFrame.release();
+        }
+        mSavedFrame = mFrameHolder.acquire();
+        Bitmap bitmap = mSavedFrame == null ? null : mSavedFrame.getBitmap();
+        Log.d(CLASS_NAME, "Saving current image: " + bitmap);
+        savedInstanceState.putParcelable("currentImage", bitmap);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Stop the decoder first, so that it does not keep any of the released bitmaps.
+        mDecodeWorker.shutdown();
+        mFrameHolder.clear();
+        showCurrentFrame();
+        // On a configuration change, the bundle with the saved image is handed to the
+        // next instance of the activity without being parceled. The next instance takes
+        // over the bitmap, so the lease is abandoned and the bitmap is never recycled here.
+        if (mSavedFrame != null && !isChangingConfigurations()) {
+            mSavedFrame.release();
+        }
+        mSavedFrame = null;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryBudget.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMemoryBudget.onLowMemory();
     }
 
     /**
@@ -163,9 +422,19 @@ public class Screen extends AppCompatActivity {
      * Display the image and remove the "please wait" screen as soon as the image
      * data has arrived.
      */
-    class ImageHandler implements ImageReceivedListener {
+    class ImageHandler implements ImageReceivedListener, ImageFileReceivedListener {
         @Override
         public void onImageTaken() {
+            RelayServer relayServer = mRelayServer;
+            if (relayServer != null) {
+                relayServer.onImageTaken();
+            }
+            MulticastImageSender multicastSender = mMulticastSender;
+            if (multicastSender != null) {
+                multicastSender.onImageTaken();
+            }
+            // Use the time until the image data arrives to prepare the decoder.
+            mFramePipeline.onImageTaken();
             runOnUiThread(new Runnable() {
 
                 @Override
@@ -177,21 +446,27 @@ public class Screen extends AppCompatActivity {
         }
 
         @Override
-        public void onImageReceived(byte[] imageBuffer) {
-            final Bitmap bitmap = decodeImageBuffer(imageBuffer);
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    hideWaitScreen();
-                    mCameraImageView.setImageBitmap(bitmap);
-                }
-            });
-            currentImage = bitmap;
+        public void onImageReceived(final ImageBuffer image) {
+            // Relay first, so that the other screens do not have to wait for our decoder.
+            RelayServer relayServer = mRelayServer;
+            if (relayServer != null) {
+                relayServer.onImageReceived(image);
+            }
+            MulticastImageSender multicastSender = mMulticastSender;
+            if (multicastSender != null) {
+                multicastSender.onImageReceived(image);
+            }
+            // The buffer goes back to the receiver as soon as it has been decoded.
+            mFramePipeline.submit(image);
         }
 
-        private Bitmap decodeImageBuffer(byte[] imageBuffer) {
-            final ByteArrayInputStream inputStream = new ByteArrayInputStream(imageBuffer);
-            return BitmapFactory.decodeStream(inputStream);
+        @Override
+        public void onImageFileReceived(final File imageFile) {
+            RelayServer relayServer = mRelayServer;
+            if (relayServer != null) {
+                relayServer.relayImageFile(imageFile);
+            }
+            mFramePipeline.submit(imageFile);
         }
     }
 
@@ -245,25 +520,254 @@ public class Screen extends AppCompatActivity {
         }
     }
 
+    /**
+     * Forward the events of all sources in multi-source mode.
+     * Images are merged into the display queue, the connection state of each source
+     * is shown in the status bar. The large connection status symbol is shown as long
+     * as no source at all is connected.
+     */
+    class MultiSourceHandler implements MultiSourceListener {
+        private final ImageHandler mImageHandler;
+        private final ConnectionHandler mConnectionHandler;
+        private final boolean[] mConnected = new boolean[mServerHosts.length];
+        private int mNumConnected;
+
+        MultiSourceHandler(ImageHandler imageHandler, ConnectionHandler connectionHandler) {
+            mImageHandler = imageHandler;
+            mConnectionHandler = connectionHandler;
+        }
+
+        @Override
+        public void onImageTaken(int source) {
+            mImageHandler.onImageTaken();
+        }
+
+        @Override
+        public void onImageReceived(int source, ImageBuffer image) {
+            mDisplayQueue.offer(source, image.retain());
+        }
+
+        @Override
+        public void onSourceConnected(int source) {
+            if (!mConnected[source]) {
+                mConnected[source] = true;
+                if (mNumConnected++ == 0) {
+                    mConnectionHandler.onConnected();
+                }
+            }
+            showSourceStatus(source, R.drawable.connected);
+        }
+
+        @Override
+        public void onSourceDisconnected(int source) {
+            if (mConnected[source]) {
+                mConnected[source] = false;
+                if (--mNumConnected == 0) {
+                    mConnectionHandler.onDisconnected();
+                }
+            } else if (mNumConnected == 0) {
+                mConnectionHandler.onDisconnected();
+            }
+            showSourceStatus(source, R.drawable.disconnected);
+        }
+
+        private void showSourceStatus(final int source, final int drawable) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    ImageView statusView = (ImageView) mSourceStatusBar.getChildAt(source);
+                    if (statusView != null) {
+                        statusView.setImageResource(drawable);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Take the images of all sources from the display queue and show them one after the other.
+     * The queue holds back the images of other sources during the dwell time of an image.
+     */
+    static class DisplayTask extends TransportTask {
+        private final DisplayQueue mQueue;
+        private final ImageHandler mImageHandler;
+
+        DisplayTask(DisplayQueue queue, ImageHandler imageHandler) {
+            super("DisplayTask", PRIORITY_SERVE);
+            mQueue = queue;
+            mImageHandler = imageHandler;
+        }
+
+        @Override
+        protected void onCancel() {
+            mQueue.close();
+        }
+
+        @Override
+        protected void runTask() {
+            try {
+                while (!isCancelled()) {
+                    DisplayQueue.Entry entry = mQueue.take();
+                    if (entry == null) {
+                        break;
+                    }
+                    try {
+                        mImageHandler.onImageReceived(entry.image);
+                    } finally {
+                        entry.image.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The executor gave up on cooperative cancellation.
+            }
+        }
+    }
+
     @Override
     public void onStart() {
         super.onStart();
         hide();
+        mTransportExecutor = new TransportExecutor("transport", TRANSPORT_THREADS);
 
-        mHeartbeatReceiver = new HeartbeatReceiver(SERVER_IP, HEARTBEAT_PORT);
-        mHeartbeatReceiver.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        if (RELAY_MODE) {
+            mRelayServer = new RelayServer(RELAY_PORT, RELAY_HEARTBEAT_PORT);
+            mTransportExecutor.execute(mRelayServer);
+        }
 
-        mImageReceiver = new ImageReceiver(SERVER_IP, SERVER_PORT,
-                new ImageHandler(),
+        if (MULTICAST_SEND) {
+            startMulticastSender();
+        }
+
+        if (mServerHosts.length > 1) {
+            startMultiSourceMode();
+            hideWaitScreen();
+            return;
+        }
+        if (MULTICAST_RECEIVE) {
+            startMulticastReceiver();
+            hideWaitScreen();
+            return;
+        }
+
+        openTrafficCapture();
+
+        mHeartbeatReceiver = new HeartbeatReceiver(mServerHosts[0], getHeartbeatPort());
+        mHeartbeatReceiver.setTrafficCapture(mTrafficCapture);
+        mTransportExecutor.execute(mHeartbeatReceiver);
+
+        ImageHandler imageHandler = new ImageHandler();
+        mImageReceiver = new ImageReceiver(mServerHosts[0], mServerPort,
+                imageHandler,
                 new ConnectionHandler());
-        mImageReceiver.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        mImageReceiver.setSpillToFile(getCacheDir(), SPILL_THRESHOLD, imageHandler);
+        mImageReceiver.setMemoryBudget(mMemoryBudget);
+        mImageReceiver.setTrafficCapture(mTrafficCapture);
+        TransportProfile profile = new TransportProfile();
+        profile.setAutoTune(TRANSPORT_AUTO_TUNE);
+        mImageReceiver.setTransportProfile(profile);
+        mTransportExecutor.execute(mImageReceiver);
         hideWaitScreen();
     }
 
+    /**
+     * @return the port of the heartbeat channel, which follows the image port.
+     */
+    private int getHeartbeatPort() {
+        return mServerPort + HEARTBEAT_PORT - SERVER_PORT;
+    }
+
+    private void startMultiSourceMode() {
+        ImageHandler imageHandler = new ImageHandler();
+        mDisplayQueue = new DisplayQueue(mServerHosts.length, MULTI_SOURCE_DWELL_MILLIS);
+        mDisplayTask = new DisplayTask(mDisplayQueue, imageHandler);
+        mTransportExecutor.execute(mDisplayTask);
+
+        mSourceStatusBar.removeAllViews();
+        mSourceStatusBar.setVisibility(View.VISIBLE);
+        int size = getResources().getDimensionPixelSize(R.dimen.source_status_size);
+        for (int i = 0; i < mServerHosts.length; ++i) {
+            ImageView statusView = new ImageView(this);
+            statusView.setScaleType(ImageView.ScaleType.FIT_CENTER);
+            mSourceStatusBar.addView(statusView, new LinearLayout.LayoutParams(size, size));
+        }
+
+        openTrafficCapture();
+        mMultiSourceReceiver = new MultiSourceReceiver(mServerHosts, mServerPort, getHeartbeatPort(),
+                new MultiSourceHandler(imageHandler, new ConnectionHandler()));
+        mMultiSourceReceiver.setMemoryBudget(mMemoryBudget);
+        mMultiSourceReceiver.setTrafficCapture(mTrafficCapture);
+        mTransportExecutor.execute(mMultiSourceReceiver);
+    }
+
+    private InetAddress getMulticastGroup() {
+        try {
+            return InetAddress.getByName(MULTICAST_GROUP);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Invalid multicast group " + MULTICAST_GROUP, e);
+        }
+    }
+
+    private void startMulticastSender() {
+        mRangeServer = new RangeServer(RANGE_PORT);
+        mTransportExecutor.execute(mRangeServer);
+        mMulticastSender = new MulticastImageSender(getMulticastGroup(), MULTICAST_PORT, null, mRangeServer);
+        mMulticastSender.setRate(MULTICAST_RATE);
+        mTransportExecutor.execute(mMulticastSender);
+    }
+
+    private void startMulticastReceiver() {
+        // Most Wi-Fi drivers filter multicast datagrams unless a multicast lock is held.
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+        mMulticastLock = wifiManager.createMulticastLock(CLASS_NAME);
+        mMulticastLock.acquire();
+
+        mMulticastReceiver = new MulticastImageReceiver(getMulticastGroup(), MULTICAST_PORT, null,
+                RANGE_HOST, RANGE_PORT,
+                new ImageHandler(),
+                new ConnectionHandler());
+        mMulticastReceiver.setMemoryBudget(mMemoryBudget);
+        mTransportExecutor.execute(mMulticastReceiver);
+    }
+
     @Override
     public void onStop() {
         super.onStop();
-        mHeartbeatReceiver.cancel(true);
-        mImageReceiver.cancel(true);
+        // Cancels all receivers and servers, closes their sockets and waits for their threads,
+        // so that none of them is still running when the screen is started again.
+        if (!mTransportExecutor.shutdown(TRANSPORT_SHUTDOWN_MILLIS)) {
+            Log.e(CLASS_NAME, "Not all transport tasks ended within " + TRANSPORT_SHUTDOWN_MILLIS + " ms.");
+        }
+        mTransportExecutor = null;
+        mRelayServer = null;
+        mMulticastSender = null;
+        mRangeServer = null;
+        mHeartbeatReceiver = null;
+        mImageReceiver = null;
+        if (mMultiSourceReceiver != null) {
+            mDisplayQueue.close();
+            mMultiSourceReceiver = null;
+            mDisplayTask = null;
+        }
+        if (mMulticastReceiver != null) {
+            mMulticastLock.release();
+            mMulticastReceiver = null;
+        }
+        if (mTrafficCapture != null) {
+            mTrafficCapture.close();
+            mTrafficCapture = null;
+        }
+    }
+
+    private void openTrafficCapture() {
+        if (!CAPTURE_TRAFFIC) {
+            return;
+        }
+        File file = new File(getExternalFilesDir(null), CAPTURE_FILE);
+        try {
+            mTrafficCapture = new TrafficCapture(file);
+            Log.i(CLASS_NAME, "Capturing traffic into " + file);
+        } catch (IOException e) {
+            Log.e(CLASS_NAME, "Could not open the traffic capture " + file, e);
+        }
     }
 }
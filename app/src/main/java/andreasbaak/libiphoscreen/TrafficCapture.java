@@ -0,0 +1,190 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records the frames that the receivers read from the network into an append-only file,
+ * so that the traffic of an event can be replayed later against the app.
+ *
+ * The file starts with a magic number. Each record consists of
+ * <ul>
+ *     <li>the channel (one byte, CHANNEL_IMAGE, CHANNEL_HEARTBEAT or SESSION),</li>
+ *     <li>a monotonic timestamp in nanoseconds (eight bytes),</li>
+ *     <li>the length of the frame (four bytes),</li>
+ *     <li>and the frame itself, exactly as it has been received.</li>
+ * </ul>
+ * Every time a capture is opened, a SESSION record without data is appended. Timestamps
+ * are only comparable within a session, since the monotonic clock restarts on reboot.
+ *
+ * In multi-source mode, the channels of each source are recorded separately, see
+ * getChannel(int, int). The channels of the first source are those of a single server,
+ * so that its traffic can be replayed like a capture of a single server.
+ *
+ * Recording is best effort: if the file cannot be written, the capture disables itself
+ * and the receivers continue as if no capture was configured.
+ */
+public class TrafficCapture {
+    public static final int CHANNEL_IMAGE = 0;
+    public static final int CHANNEL_HEARTBEAT = 1;
+    public static final int SESSION = 0xff;
+
+    /** Number of channels per source. */
+    private static final int CHANNELS_PER_SOURCE = 2;
+
+    private static final int MAGIC = 0x4c495043; // "LIPC"
+
+    private DataOutputStream mOutput;
+
+    /**
+     * Open the capture file for appending. The file is created if it does not exist.
+     */
+    public TrafficCapture(File file) throws IOException {
+        boolean isNew = !file.exists() || file.length() == 0;
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (isNew) {
+            mOutput.writeInt(MAGIC);
+        }
+        writeHeader(SESSION, 0);
+    }
+
+    /**
+     * @return the channel under which the traffic of the given channel of a source is recorded.
+     */
+    public static int getChannel(int channel, int source) {
+        return channel + CHANNELS_PER_SOURCE * source;
+    }
+
+    /**
+     * Append a frame that consists of the remaining bytes of all given buffers.
+     * The positions of the buffers are not modified.
+     */
+    public synchronized void record(int channel, ByteBuffer... parts) {
+        if (mOutput == null) {
+            return;
+        }
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        try {
+            writeHeader(channel, length);
+            for (ByteBuffer part : parts) {
+                if (part.hasArray()) {
+                    mOutput.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+                } else {
+                    ByteBuffer source = part.duplicate();
+                    byte[] chunk = new byte[Math.min(source.remaining(), 64 * 1024)];
+                    while (source.hasRemaining()) {
+                        int n = Math.min(chunk.length, source.remaining());
+                        source.get(chunk, 0, n);
+                        mOutput.write(chunk, 0, n);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            EventLog.get().record(EventLog.Event.CAPTURE_ERROR, e);
+            close();
+        }
+    }
+
+    private void writeHeader(int channel, int length) throws IOException {
+        mOutput.writeByte(channel);
+        mOutput.writeLong(System.nanoTime());
+        mOutput.writeInt(length);
+    }
+
+    /**
+     * Flush and close the capture file. Subsequent frames are ignored.
+     */
+    public synchronized void close() {
+        if (mOutput == null) {
+            return;
+        }
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            EventLog.get().record(EventLog.Event.CAPTURE_ERROR, e);
+        }
+        mOutput = null;
+    }
+
+    /**
+     * Reads the records of a capture file in the order they have been written.
+     */
+    public static class Reader {
+        private final DataInputStream mInput;
+        private int mChannel;
+        private long mTimestampNanos;
+        private byte[] mData;
+
+        public Reader(File file) throws IOException {
+            mInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (mInput.readInt() != MAGIC) {
+                mInput.close();
+                throw new IOException("Not a traffic capture: " + file);
+            }
+        }
+
+        /**
+         * Advance to the next record.
+         * @return false if the end of the capture has been reached.
+         */
+        public boolean next() throws IOException {
+            try {
+                mChannel = mInput.readUnsignedByte();
+            } catch (EOFException e) {
+                return false;
+            }
+            mTimestampNanos = mInput.readLong();
+            mData = new byte[mInput.readInt()];
+            mInput.readFully(mData);
+            return true;
+        }
+
+        public int getChannel() {
+            return mChannel;
+        }
+
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the receivers and servers of the app on a fixed number of dedicated threads.
+ *
+ * Every TransportTask occupies a thread for its whole lifetime, hence tasks are never
+ * queued: if all threads are busy, execute() throws a RejectedExecutionException instead
+ * of letting the task wait for a thread that may never become free. The threads are named
+ * after the executor and the task that they run, and adopt the priority of the task.
+ *
+ * shutdown() cancels all tasks and waits for the threads to end within a deadline,
+ * so that no task of a previous life cycle competes with the tasks of the next one.
+ */
+public class TransportExecutor {
+    private final EventLog mEventLog = EventLog.get();
+    private final ThreadPoolExecutor mExecutor;
+    /** Tasks that have been executed and have not finished yet. Guarded by itself. */
+    private final List<TransportTask> mTasks = new ArrayList<>();
+    /** All threads that have been created, so that shutdown() can join them. Guarded by itself. */
+    private final List<Thread> mThreads = new ArrayList<>();
+
+    /**
+     * @param name prefix of the names of all threads.
+     * @param numThreads maximum number of tasks that run at the same time.
+     */
+    public TransportExecutor(final String name, int numThreads) {
+        mExecutor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + mCount.incrementAndGet());
+                synchronized (mThreads) {
+                    mThreads.add(thread);
+                }
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run the task on a thread of its own.
+     * @throws RejectedExecutionException if all threads are busy or the executor has been shut down.
+     */
+    public void execute(final TransportTask task) {
+        synchronized (mTasks) {
+            mTasks.add(task);
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        synchronized (mTasks) {
+                            mTasks.remove(task);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (mTasks) {
+                mTasks.remove(task);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks that have been executed and have not finished yet.
+     */
+    public int getTaskCount() {
+        synchronized (mTasks) {
+            return mTasks.size();
+        }
+    }
+
+    /**
+     * Cancel all tasks and wait until all threads have ended.
+     * Tasks that ignore the cancellation are interrupted when the deadline has passed.
+     * No more tasks can be executed afterwards.
+     *
+     * @param timeoutMillis time to wait for the threads.
+     * @return true if all threads have ended within the deadline.
+     */
+    public boolean shutdown(long timeoutMillis) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mExecutor.shutdown();
+        List<TransportTask> tasks;
+        synchronized (mTasks) {
+            tasks = new ArrayList<>(mTasks);
+        }
+        for (TransportTask task : tasks) {
+            task.cancel();
+        }
+        boolean terminated;
+        try {
+            terminated = mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)
+                    && joinThreads(deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            terminated = false;
+        }
+        if (!terminated) {
+            mEventLog.record(EventLog.Event.TRANSPORT_SHUTDOWN_TIMEOUT, getTaskCount());
+            mExecutor.shutdownNow();
+            return false;
+        }
+        mEventLog.record(EventLog.Event.TRANSPORT_SHUTDOWN,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    /**
+     * The executor terminates as soon as its last task has finished,
+     * its threads may still be running for a moment afterwards.
+     * @return true if all threads have ended before the deadline.
+     */
+    private boolean joinThreads(long deadline) throws InterruptedException {
+        List<Thread> threads;
+        synchronized (mThreads) {
+            threads = new ArrayList<>(mThreads);
+        }
+        for (Thread thread : threads) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining > 0) {
+                thread.join(remaining);
+            }
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket options and read strategy of the image channel.
+ *
+ * The receive buffer is sized to the bandwidth-delay product of the link, so that the
+ * TCP window never throttles the transfer of an image. Since the window scale is
+ * negotiated during the handshake, the size has to be applied before connecting.
+ * Unless the link is given with setLink() or measured by auto-tuning, its bandwidth and
+ * round-trip time are assumed, see DEFAULT_BANDWIDTH and DEFAULT_ROUND_TRIP_MILLIS.
+ *
+ * In the auto-tuning mode, the round-trip time is taken from the duration of the
+ * handshake and the goodput from the first image of at least MIN_TUNING_BYTES on each
+ * connection. There is no probe: until such an image arrives, the receive buffer is sized
+ * for the default link or the last measurement, and the window scale of the connection
+ * limits how far it can grow afterwards, so the measurement fully applies only to the next
+ * connection. The receive buffer is sized to twice the data that arrived per round trip,
+ * like the dynamic right-sizing of the Linux kernel, which allows the window to grow if
+ * the goodput was limited by the buffer itself.
+ *
+ * The read strategy has been chosen with TransportProfileBenchmarkTest. It runs on
+ * loopback, which has no meaningful round-trip time, so it says nothing about the receive
+ * buffer size. Instances are not thread-safe, receivers keep a copy of the profile that
+ * they are given.
+ */
+public class TransportProfile {
+    public static final int MIN_RECEIVE_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    /** Size of the read-ahead buffer for scattering reads, see FramingReader. */
+    public static final int READ_AHEAD_SIZE = 64 * 1024;
+
+    /**
+     * The default link is an assumption, not a measurement: 80 Mbit/s is what 802.11n
+     * should reach in a photobooth network, and 20 ms is a typical round trip on a busy
+     * WLAN. Their product of 200 kB is well within the limits of the receive buffer size,
+     * so a default that is off by a factor of a few still gives a sensible window.
+     */
+    private static final long DEFAULT_BANDWIDTH = 10 * 1000 * 1000;
+    private static final int DEFAULT_ROUND_TRIP_MILLIS = 20;
+    /** Images below this size do not last long enough to measure the goodput. */
+    private static final int MIN_TUNING_BYTES = 256 * 1024;
+
+    private long mBandwidth = DEFAULT_BANDWIDTH;
+    private int mRoundTripMillis = DEFAULT_ROUND_TRIP_MILLIS;
+    private int mReceiveBufferSize = -1;
+    private boolean mTcpNoDelay = true;
+    private boolean mKeepAlive = true;
+    private boolean mDirectBuffers = true;
+    private boolean mScatterReads = true;
+    private boolean mAutoTune;
+
+    public TransportProfile() {
+    }
+
+    public TransportProfile(TransportProfile other) {
+        mBandwidth = other.mBandwidth;
+        mRoundTripMillis = other.mRoundTripMillis;
+        mReceiveBufferSize = other.mReceiveBufferSize;
+        mTcpNoDelay = other.mTcpNoDelay;
+        mKeepAlive = other.mKeepAlive;
+        mDirectBuffers = other.mDirectBuffers;
+        mScatterReads = other.mScatterReads;
+        mAutoTune = other.mAutoTune;
+    }
+
+    /**
+     * Size the receive buffer for the given link.
+     *
+     * @param bytesPerSecond expected bandwidth of the link.
+     * @param roundTripMillis expected round-trip time to the server.
+     */
+    public void setLink(long bytesPerSecond, int roundTripMillis) {
+        mBandwidth = bytesPerSecond;
+        mRoundTripMillis = roundTripMillis;
+    }
+
+    /**
+     * Use a fixed receive buffer size instead of the bandwidth-delay product,
+     * or the system default if 0. Negative sizes restore the bandwidth-delay product.
+     */
+    public void setReceiveBufferSize(int bytes) {
+        mReceiveBufferSize = bytes;
+    }
+
+    /**
+     * @return the receive buffer size in bytes, or 0 for the system default.
+     */
+    public int getReceiveBufferSize() {
+        if (mReceiveBufferSize >= 0) {
+            return mReceiveBufferSize;
+        }
+        long bandwidthDelayProduct = mBandwidth * mRoundTripMillis / 1000;
+        return (int) Math.max(MIN_RECEIVE_BUFFER_SIZE, Math.min(MAX_RECEIVE_BUFFER_SIZE, bandwidthDelayProduct));
+    }
+
+    /**
+     * Disable Nagle's algorithm, so that small frames are sent without delay.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        mTcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Let the kernel probe idle connections, so that a server that has vanished is
+     * noticed even while no image is taken. The probe intervals are those of the system.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * Allocate the read-ahead buffer of the FramingReader outside of the Java heap, which
+     * the kernel writes to without the intermediate copy that a heap buffer requires.
+     * The image data is always received into the pooled heap arrays of the receiver, so
+     * no image is received twice, and only those arrays count against the MemoryBudget.
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        mDirectBuffers = directBuffers;
+    }
+
+    public boolean isDirectBuffers() {
+        return mDirectBuffers;
+    }
+
+    /**
+     * Read small frames ahead and the image data with scattering reads, see FramingReader.
+     */
+    public void setScatterReads(boolean scatterReads) {
+        mScatterReads = scatterReads;
+    }
+
+    /**
+     * @return the size of the read-ahead buffer of the FramingReader, 0 if none.
+     */
+    public int getReadAheadSize() {
+        return mScatterReads ? READ_AHEAD_SIZE : 0;
+    }
+
+    /**
+     * Measure the link with the handshake and the first image of at least MIN_TUNING_BYTES
+     * of each connection, and size the receive buffer accordingly.
+     */
+    public void setAutoTune(boolean autoTune) {
+        mAutoTune = autoTune;
+    }
+
+    public boolean isAutoTune() {
+        return mAutoTune;
+    }
+
+    /**
+     * Apply the options to a socket that has not been connected yet.
+     */
+    void applyTo(Socket socket) throws SocketException {
+        int receiveBufferSize = getReceiveBufferSize();
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        socket.setTcpNoDelay(mTcpNoDelay);
+        socket.setKeepAlive(mKeepAlive);
+    }
+
+    /**
+     * Take the duration of the handshake as the round-trip time.
+     */
+    void onConnected(long connectNanos) {
+        if (mAutoTune) {
+            mRoundTripMillis = (int) Math.max(1, connectNanos / 1000000);
+        }
+    }
+
+    /**
+     * Take the goodput of a received image as the bandwidth of the link.
+     *
+     * @return whether the image was large enough to tune the receive buffer size.
+     */
+    boolean onReceived(long bytes, long nanos) {
+        if (!mAutoTune || bytes < MIN_TUNING_BYTES || nanos <= 0) {
+            return false;
+        }
+        // Twice the goodput, since the goodput may have been limited by the receive buffer.
+        mBandwidth = 2 * bytes * 1000000000L / nanos;
+        mReceiveBufferSize = -1;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "receive buffer " + getReceiveBufferSize() + ", no delay " + mTcpNoDelay
+                + ", keepalive " + mKeepAlive + ", direct " + mDirectBuffers
+                + ", scatter " + mScatterReads + ", auto-tune " + mAutoTune;
+    }
+}
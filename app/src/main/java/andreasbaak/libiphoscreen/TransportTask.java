@@ -0,0 +1,227 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-running network task, such as a receiver or a server, that is executed
+ * by a TransportExecutor.
+ *
+ * Cancellation is cooperative and does not rely on interrupting the thread.
+ * cancel() sets a flag that the task checks with isCancelled(), closes all sockets
+ * and channels that the task has registered with track(), and wakes the task
+ * up from pause(). Closing the resources makes blocking connects, reads and accepts
+ * return immediately, so the task ends as soon as it checks the flag the next time.
+ * Tasks that block on anything else override onCancel() to wake themselves up.
+ *
+ * A task can only be run once.
+ */
+public abstract class TransportTask implements Runnable {
+    /** Priority of tasks that receive the images, which are on the critical path. */
+    public static final int PRIORITY_RECEIVE = Thread.NORM_PRIORITY + 2;
+    /** Priority of tasks that serve or forward images to other screens. */
+    public static final int PRIORITY_SERVE = Thread.NORM_PRIORITY;
+    /** Priority of tasks that only keep a connection alive or serve rare requests. */
+    public static final int PRIORITY_BACKGROUND = Thread.NORM_PRIORITY - 2;
+
+    private final EventLog mEventLog = EventLog.get();
+    private final String mName;
+    private final int mPriority;
+    private final Object mLock = new Object();
+    /** Resources that are closed on cancellation. Guarded by mLock. */
+    private final List<Closeable> mResources = new ArrayList<>();
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    private volatile boolean mCancelled;
+    private boolean mStarted;
+
+    /**
+     * @param name name of the task, which is appended to the name of the executing thread.
+     * @param priority thread priority while the task is running, e.g. PRIORITY_RECEIVE.
+     */
+    protected TransportTask(String name, int priority) {
+        mName = name;
+        mPriority = priority;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * The body of the task. It has to return as soon as isCancelled() returns true.
+     * All resources that have been registered with track() are closed afterwards.
+     */
+    protected abstract void runTask();
+
+    /**
+     * Called by cancel() after all tracked resources have been closed.
+     * Tasks that wait on something other than a tracked resource or pause()
+     * override this in order to wake up.
+     */
+    protected void onCancel() {
+    }
+
+    @Override
+    public final void run() {
+        synchronized (mLock) {
+            if (mStarted) {
+                throw new IllegalStateException("Task " + mName + " has already been started.");
+            }
+            mStarted = true;
+        }
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        int threadPriority = thread.getPriority();
+        thread.setName(threadName + "-" + mName);
+        thread.setPriority(mPriority);
+        try {
+            if (!mCancelled) {
+                runTask();
+            }
+        } catch (RuntimeException e) {
+            mEventLog.record(EventLog.Event.TASK_FAILED, e);
+        } finally {
+            closeResources();
+            thread.setName(threadName);
+            thread.setPriority(threadPriority);
+            mFinished.countDown();
+        }
+    }
+
+    /**
+     * Ask the task to finish. Returns immediately, use awaitTermination()
+     * in order to wait for the task to finish.
+     */
+    public final void cancel() {
+        synchronized (mLock) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            mLock.notifyAll();
+        }
+        closeResources();
+        onCancel();
+    }
+
+    public final boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Wait until the task has finished.
+     * @return true if the task has finished, false if the timeout elapsed before.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mFinished.await(timeout, unit);
+    }
+
+    /**
+     * Close the given resource as soon as the task is cancelled, or immediately
+     * if the task has been cancelled already.
+     * @return the resource.
+     */
+    protected final <T extends Closeable> T track(T resource) {
+        boolean cancelled;
+        synchronized (mLock) {
+            cancelled = mCancelled;
+            if (!cancelled) {
+                mResources.add(resource);
+            }
+        }
+        if (cancelled) {
+            closeQuietly(resource);
+        }
+        return resource;
+    }
+
+    /**
+     * Close a resource that has been registered with track() and forget about it.
+     * Null is ignored.
+     */
+    protected final void close(Closeable resource) {
+        if (resource == null) {
+            return;
+        }
+        synchronized (mLock) {
+            mResources.remove(resource);
+        }
+        closeQuietly(resource);
+    }
+
+    /**
+     * Wait for the given time, e.g. before a connection attempt is repeated.
+     * @return true if the time has elapsed, false if the task has been cancelled.
+     */
+    protected final boolean pause(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (mLock) {
+            while (!mCancelled) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return true;
+                }
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    // The executor gave up on cooperative cancellation.
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void closeResources() {
+        List<Closeable> resources;
+        synchronized (mLock) {
+            resources = new ArrayList<>(mResources);
+            mResources.clear();
+        }
+        for (Closeable resource : resources) {
+            closeQuietly(resource);
+        }
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
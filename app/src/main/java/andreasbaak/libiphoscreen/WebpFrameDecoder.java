@@ -0,0 +1,43 @@
+/*
+libipho-screen-android is the Android front-end of the libipho photobooth.
+
+Copyright (C) 2015 Andreas Baak (andreas.baak@gmail.com)
+
+This file is part of libipho-screen-android.
+
+libipho-screen-server is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+libipho-screen-server is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with libipho-screen-android. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package andreasbaak.libiphoscreen;
+
+/**
+ * Decodes WebP images straight to the target size.
+ *
+ * libwebp scales while decoding to any output size, so in contrast to JPEG the sample
+ * size does not have to be a power of two and the decoded image can be closer to the
+ * target size. Lossy WebP is supported by BitmapFactory since API 14, lossless and
+ * transparent WebP since API 18.
+ */
+public class WebpFrameDecoder extends BitmapFrameDecoder {
+
+    @Override
+    public boolean supports(int format) {
+        return format == ImageHeader.FORMAT_WEBP;
+    }
+
+    @Override
+    public int getSampleSize(ImageHeader header, int targetWidth, int targetHeight) {
+        return header.getSampleSize(targetWidth, targetHeight, Integer.MAX_VALUE, false);
+    }
+}
@@ -0,0 +1,67 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Checks that the pool accounts for the arrays that are in use as well as the idle ones.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class BufferPoolTest extends TestCase {
+
+    private final BufferPool pool = new BufferPool(2);
+
+    @Test
+    public void testArraysInUseAreCounted() {
+        byte[] first = pool.acquire(100);
+        byte[] second = pool.acquire(200);
+        Assert.assertEquals(300, pool.getMemoryUsage());
+
+        pool.release(first);
+        Assert.assertEquals(300, pool.getMemoryUsage());
+        Assert.assertSame(first, pool.poll(50));
+        Assert.assertNull(pool.poll(50));
+        Assert.assertEquals(300, pool.getMemoryUsage());
+
+        pool.release(first);
+        pool.release(second);
+        Assert.assertEquals(300, pool.getMemoryUsage());
+    }
+
+    @Test
+    public void testTrimKeepsArraysInUse() {
+        byte[] idle = pool.acquire(100);
+        byte[] inUse = pool.acquire(200);
+        pool.release(idle);
+        pool.trimMemory();
+        Assert.assertEquals(200, pool.getMemoryUsage());
+        Assert.assertNull(pool.poll(1));
+
+        pool.release(inUse);
+        Assert.assertEquals(200, pool.getMemoryUsage());
+        Assert.assertSame(inUse, pool.acquire(150));
+    }
+
+    @Test
+    public void testDroppedArraysAreNotCounted() {
+        byte[] small = pool.acquire(100);
+        byte[] medium = pool.acquire(200);
+        byte[] large = pool.acquire(300);
+        pool.release(small);
+        pool.release(medium);
+        // The pool is full, so the larger array replaces the smallest one.
+        pool.release(large);
+        Assert.assertEquals(500, pool.getMemoryUsage());
+
+        byte[] larger = pool.acquire(400);
+        Assert.assertEquals(900, pool.getMemoryUsage());
+        pool.release(larger);
+        Assert.assertEquals(700, pool.getMemoryUsage());
+    }
+}
@@ -0,0 +1,149 @@
+package andreasbaak.libiphoscreen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Plays a traffic capture back over loopback.
+ *
+ * The server accepts one client on the image port and one on the heartbeat port and
+ * writes the recorded frames to them, either at the recorded speed or as fast as possible.
+ * Heartbeat frames are dropped as long as no heartbeat client is connected.
+ * This allows benchmarking the receive path against the traffic of a real event.
+ */
+public class CaptureReplayServer {
+    private final File mCapture;
+    private final int mImagePort;
+    private final int mHeartbeatPort;
+    private final boolean mRealTime;
+
+    private ServerSocket mImageServer;
+    private ServerSocket mHeartbeatServer;
+    private volatile Socket mImageClient;
+    private volatile Socket mHeartbeatClient;
+    private Thread mReplayThread;
+    private volatile Exception mError;
+    private volatile long mReplayNanos;
+
+    /**
+     * @param capture file that has been written by TrafficCapture.
+     * @param realTime if true, the frames are sent with the recorded timing,
+     *                 otherwise as fast as possible.
+     */
+    public CaptureReplayServer(File capture, int imagePort, int heartbeatPort, boolean realTime) {
+        mCapture = capture;
+        mImagePort = imagePort;
+        mHeartbeatPort = heartbeatPort;
+        mRealTime = realTime;
+    }
+
+    public void start() throws IOException {
+        mImageServer = openServer(mImagePort);
+        mHeartbeatServer = openServer(mHeartbeatPort);
+        Thread heartbeatThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHeartbeatClient = mHeartbeatServer.accept();
+                } catch (IOException e) {
+                    // The server has been closed before a heartbeat client connected.
+                }
+            }
+        }, "ReplayHeartbeat");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+
+        mReplayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (Exception e) {
+                    mError = e;
+                }
+            }
+        }, "ReplayImage");
+        mReplayThread.start();
+    }
+
+    private static ServerSocket openServer(int port) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress("127.0.0.1", port));
+        return server;
+    }
+
+    private void replay() throws IOException, InterruptedException {
+        mImageClient = mImageServer.accept();
+        OutputStream imageOutput = mImageClient.getOutputStream();
+        TrafficCapture.Reader reader = new TrafficCapture.Reader(mCapture);
+        long start = System.nanoTime();
+        long sessionBase = -1;
+        long sessionStart = start;
+        try {
+            while (reader.next()) {
+                if (reader.getChannel() == TrafficCapture.SESSION) {
+                    sessionBase = reader.getTimestampNanos();
+                    sessionStart = System.nanoTime();
+                    continue;
+                }
+                if (mRealTime && sessionBase >= 0) {
+                    long due = sessionStart + (reader.getTimestampNanos() - sessionBase);
+                    long delay = due - System.nanoTime();
+                    if (delay > 0) {
+                        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                    }
+                }
+                if (reader.getChannel() == TrafficCapture.CHANNEL_IMAGE) {
+                    imageOutput.write(reader.getData());
+                    imageOutput.flush();
+                } else if (reader.getChannel() == TrafficCapture.CHANNEL_HEARTBEAT) {
+                    Socket heartbeat = mHeartbeatClient;
+                    if (heartbeat != null) {
+                        heartbeat.getOutputStream().write(reader.getData());
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        mReplayNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Wait until all frames have been sent.
+     * @return the time it took to send all frames in nanoseconds.
+     */
+    public long awaitFinished(long timeoutMillis) throws Exception {
+        mReplayThread.join(timeoutMillis);
+        if (mError != null) {
+            throw mError;
+        }
+        if (mReplayThread.isAlive()) {
+            throw new IllegalStateException("Replay did not finish in time.");
+        }
+        return mReplayNanos;
+    }
+
+    public void close() {
+        closeQuietly(mImageClient);
+        closeQuietly(mHeartbeatClient);
+        closeQuietly(mImageServer);
+        closeQuietly(mHeartbeatServer);
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class DisplayQueueTest extends TestCase {
+
+    private static final int NUM_SOURCES = 3;
+
+    private final DisplayQueue queue = new DisplayQueue(NUM_SOURCES);
+
+    private static ImageBuffer image(int id) {
+        return ImageBuffer.wrap(new byte[]{(byte) id});
+    }
+
+    private void assertTake(int source, int id) throws InterruptedException {
+        DisplayQueue.Entry entry = queue.take();
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(source, entry.source);
+        Assert.assertEquals(id, entry.image.getData()[0]);
+        entry.image.release();
+    }
+
+    @Test
+    public void testSourcesAreServedRoundRobin() throws InterruptedException {
+        queue.offer(2, image(1));
+        queue.offer(0, image(2));
+        queue.offer(1, image(3));
+        assertTake(0, 2);
+        assertTake(1, 3);
+        assertTake(2, 1);
+
+        // The next round starts after the source that was served last.
+        queue.offer(2, image(4));
+        queue.offer(1, image(5));
+        assertTake(1, 5);
+        assertTake(2, 4);
+        Assert.assertEquals(0, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void testBusySourceDoesNotStarveOthers() throws InterruptedException {
+        queue.offer(0, image(1));
+        queue.offer(1, image(2));
+        assertTake(0, 1);
+        // Source 0 keeps sending, but source 1 has been waiting.
+        queue.offer(0, image(3));
+        assertTake(1, 2);
+        queue.offer(0, image(4));
+        queue.offer(2, image(5));
+        assertTake(2, 5);
+        assertTake(0, 4);
+    }
+
+    @Test
+    public void testBurstOfOneSourceIsCoalesced() throws InterruptedException {
+        for (int i = 1; i <= 5; ++i) {
+            queue.offer(1, image(i));
+        }
+        queue.offer(2, image(6));
+        Assert.assertEquals(4, queue.getCoalescedCount());
+        // Only the latest image of the burst is displayed.
+        assertTake(1, 5);
+        assertTake(2, 6);
+
+        queue.offer(1, image(7));
+        assertTake(1, 7);
+        Assert.assertEquals(4, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void testDroppedImagesAreReleased() throws InterruptedException {
+        ImageBuffer replaced = image(1);
+        ImageBuffer pending = image(2);
+        queue.offer(0, replaced);
+        queue.offer(0, image(3));
+        queue.offer(1, pending);
+        queue.close();
+        ImageBuffer late = image(4);
+        queue.offer(2, late);
+        // Retaining a released image fails.
+        for (ImageBuffer image : new ImageBuffer[]{replaced, pending, late}) {
+            try {
+                image.retain();
+                Assert.fail("Image " + image.getData()[0] + " has not been released");
+            } catch (IllegalStateException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testDwellHoldsBackOtherSources() throws InterruptedException {
+        final long dwellMillis = 300;
+        DisplayQueue dwellQueue = new DisplayQueue(NUM_SOURCES, dwellMillis);
+        dwellQueue.offer(0, image(1));
+        long start = System.nanoTime();
+        Assert.assertEquals(0, dwellQueue.take().source);
+        dwellQueue.offer(1, image(2));
+        dwellQueue.offer(0, image(3));
+
+        // A newer image of the shown source is taken right away.
+        DisplayQueue.Entry entry = dwellQueue.take();
+        Assert.assertEquals(0, entry.source);
+        Assert.assertEquals(3, entry.image.getData()[0]);
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 < dwellMillis);
+
+        // The other source is taken after the dwell time, without another offer.
+        entry = dwellQueue.take();
+        Assert.assertEquals(1, entry.source);
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 >= dwellMillis);
+    }
+
+    @Test
+    public void testTakeWaitsForOffer() throws InterruptedException {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.offer(2, image(1));
+            }
+        });
+        producer.start();
+        assertTake(2, 1);
+        producer.join();
+    }
+
+    @Test
+    public void testCloseWakesUpTake() throws InterruptedException {
+        final DisplayQueue.Entry[] taken = new DisplayQueue.Entry[]{new DisplayQueue.Entry(0, null)};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = queue.take();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        queue.close();
+        consumer.join(5000);
+        Assert.assertFalse(consumer.isAlive());
+        Assert.assertNull(taken[0]);
+
+        // Images that arrive after closing are never displayed.
+        queue.offer(0, image(1));
+        Assert.assertNull(queue.take());
+    }
+}
@@ -0,0 +1,99 @@
+package andreasbaak.libiphoscreen;
+
+import android.util.Log;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.StringWriter;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class EventLogTest extends TestCase {
+
+    private static final int CAPACITY = 4;
+
+    private final EventLog log = new EventLog(CAPACITY);
+
+    private String[] dump() {
+        StringWriter writer = new StringWriter();
+        log.dump(writer);
+        return writer.toString().split("\\r?\\n");
+    }
+
+    @Test
+    public void testEmptyDump() {
+        String[] lines = dump();
+        Assert.assertEquals(1, lines.length);
+        Assert.assertEquals("0 events recorded, showing the last 0", lines[0]);
+    }
+
+    @Test
+    public void testRingWrapsAround() {
+        for (int i = 1; i <= CAPACITY + 2; ++i) {
+            log.record(EventLog.Event.IMAGE_RECEIVED, i);
+        }
+        String[] lines = dump();
+        Assert.assertEquals(1 + CAPACITY, lines.length);
+        Assert.assertEquals("6 events recorded, showing the last 4", lines[0]);
+        // The two oldest events have been overwritten, the rest is listed oldest first.
+        for (int i = 0; i < CAPACITY; ++i) {
+            Assert.assertTrue(lines[1 + i], lines[1 + i].endsWith("Received an image of size " + (i + 3)));
+        }
+    }
+
+    @Test
+    public void testDumpFormat() {
+        log.record(EventLog.Event.COMMAND_TAKEN);
+        log.record(EventLog.Event.INVALID_COMMAND, 7);
+        String[] lines = dump();
+        Assert.assertEquals(3, lines.length);
+        Assert.assertTrue(lines[1], lines[1].contains(" COMMAND_TAKEN "));
+        Assert.assertTrue(lines[1], lines[1].endsWith(" An image has been taken"));
+        // The timestamps are relative to the newest event, which is printed at zero.
+        Assert.assertEquals(String.format("%10.3f %-24s %s", 0.0, "INVALID_COMMAND",
+                "Received invalid command 7"), lines[2]);
+        Assert.assertTrue(lines[1], lines[1].trim().startsWith("-"));
+    }
+
+    @Test
+    public void testLevelDropsEvents() {
+        log.setLevel(Log.WARN);
+        log.record(EventLog.Event.COMMAND_TAKEN);
+        log.record(EventLog.Event.IMAGE_RECEIVED, 100);
+        Assert.assertEquals("0 events recorded, showing the last 0", dump()[0]);
+    }
+
+    @Test
+    public void testRepeatedWarningsAreSuppressed() throws Exception {
+        log.record(EventLog.Event.INVALID_COMMAND, 1);
+        log.record(EventLog.Event.INVALID_COMMAND, 2);
+        log.record(EventLog.Event.INVALID_COMMAND, 3);
+        log.record(EventLog.Event.INVALID_COMMAND, 4);
+        // Debug events are never rate-limited.
+        log.record(EventLog.Event.COMMAND_TAKEN);
+        log.record(EventLog.Event.COMMAND_TAKEN);
+        String[] lines = dump();
+        Assert.assertEquals("3 events recorded, showing the last 3", lines[0]);
+        Assert.assertTrue(lines[1], lines[1].endsWith("Received invalid command 1"));
+
+        // The next warning after the interval reports how many have been suppressed.
+        Thread.sleep(1100);
+        log.record(EventLog.Event.INVALID_COMMAND, 5);
+        lines = dump();
+        Assert.assertEquals("4 events recorded, showing the last 4", lines[0]);
+        Assert.assertTrue(lines[4], lines[4].endsWith(
+                "Received invalid command 5 (3 similar events suppressed)"));
+
+        // The count starts over once it has been reported.
+        Thread.sleep(1100);
+        log.record(EventLog.Event.INVALID_COMMAND, 6);
+        lines = dump();
+        Assert.assertTrue(lines[4], lines[4].endsWith("Received invalid command 6"));
+    }
+}
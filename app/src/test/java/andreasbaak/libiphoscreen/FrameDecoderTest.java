@@ -0,0 +1,212 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class FrameDecoderTest extends TestCase {
+
+    private static final int TARGET_WIDTH = 1000;
+    private static final int TARGET_HEIGHT = 750;
+
+    private static byte[] encode(int width, int height, String format) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertTrue(ImageIO.write(image, format, output));
+        return output.toByteArray();
+    }
+
+    /**
+     * Insert an application segment of the given size after the start-of-image marker,
+     * like the EXIF data of a camera.
+     */
+    private static byte[] insertAppSegment(byte[] jpeg, int size) {
+        byte[] result = new byte[jpeg.length + 4 + size];
+        result[0] = (byte) 0xff;
+        result[1] = (byte) 0xd8;
+        result[2] = (byte) 0xff;
+        result[3] = (byte) 0xe1;
+        result[4] = (byte) ((size + 2) >> 8);
+        result[5] = (byte) (size + 2);
+        System.arraycopy(jpeg, 2, result, 6 + size, jpeg.length - 2);
+        return result;
+    }
+
+    /**
+     * Insert an EXIF segment with an orientation tag after the start-of-image marker.
+     * The orientation is the second entry of the first image file directory.
+     */
+    private static byte[] insertExifSegment(byte[] jpeg, int orientation, boolean littleEndian) {
+        byte[] tiff = new byte[8 + 2 + 2 * 12 + 4];
+        tiff[0] = tiff[1] = (byte) (littleEndian ? 'I' : 'M');
+        putInt16(tiff, 2, 42, littleEndian);
+        putInt16(tiff, 4, littleEndian ? 8 : 0, littleEndian);
+        putInt16(tiff, 6, littleEndian ? 0 : 8, littleEndian);
+        putInt16(tiff, 8, 2, littleEndian);
+        // ImageWidth, LONG, count 1, value 640.
+        putInt16(tiff, 10, 0x0100, littleEndian);
+        putInt16(tiff, 12, 4, littleEndian);
+        putInt16(tiff, 14 + (littleEndian ? 0 : 2), 1, littleEndian);
+        putInt16(tiff, 18 + (littleEndian ? 0 : 2), 640, littleEndian);
+        // Orientation, SHORT, count 1.
+        putInt16(tiff, 22, 0x0112, littleEndian);
+        putInt16(tiff, 24, 3, littleEndian);
+        putInt16(tiff, 26 + (littleEndian ? 0 : 2), 1, littleEndian);
+        putInt16(tiff, 30, orientation, littleEndian);
+
+        byte[] segment = insertAppSegment(jpeg, 6 + tiff.length);
+        System.arraycopy("Exif".getBytes(), 0, segment, 6, 4);
+        System.arraycopy(tiff, 0, segment, 12, tiff.length);
+        return segment;
+    }
+
+    private static void putInt16(byte[] data, int offset, int value, boolean littleEndian) {
+        data[offset] = (byte) (littleEndian ? value : value >> 8);
+        data[offset + 1] = (byte) (littleEndian ? value >> 8 : value);
+    }
+
+    private static byte[] webpHeader(String chunk, byte[] payload) {
+        byte[] data = new byte[20 + payload.length];
+        System.arraycopy("RIFF".getBytes(), 0, data, 0, 4);
+        System.arraycopy("WEBP".getBytes(), 0, data, 8, 4);
+        System.arraycopy(chunk.getBytes(), 0, data, 12, 4);
+        System.arraycopy(payload, 0, data, 20, payload.length);
+        return data;
+    }
+
+    @Test
+    public void testJpegHeaderBehindAppSegment() throws IOException {
+        byte[] jpeg = insertAppSegment(encode(640, 480, "jpeg"), 20000);
+        ImageHeader header = ImageHeader.parse(jpeg, jpeg.length);
+        Assert.assertEquals(ImageHeader.FORMAT_JPEG, header.format);
+        Assert.assertEquals(640, header.width);
+        Assert.assertEquals(480, header.height);
+    }
+
+    @Test
+    public void testExifOrientation() throws IOException {
+        byte[] jpeg = encode(64, 48, "jpeg");
+        Assert.assertEquals(ImageHeader.ORIENTATION_NORMAL, ImageHeader.parse(jpeg, jpeg.length).orientation);
+
+        byte[] motorola = insertExifSegment(jpeg, ImageHeader.ORIENTATION_ROTATE_90, false);
+        ImageHeader header = ImageHeader.parse(motorola, motorola.length);
+        Assert.assertEquals(ImageHeader.ORIENTATION_ROTATE_90, header.orientation);
+        Assert.assertTrue(header.isTransposed());
+        Assert.assertEquals(64, header.width);
+        Assert.assertEquals(48, header.height);
+
+        byte[] intel = insertExifSegment(jpeg, ImageHeader.ORIENTATION_ROTATE_180, true);
+        header = ImageHeader.parse(intel, intel.length);
+        Assert.assertEquals(ImageHeader.ORIENTATION_ROTATE_180, header.orientation);
+        Assert.assertFalse(header.isTransposed());
+
+        byte[] invalid = insertExifSegment(jpeg, 42, true);
+        Assert.assertEquals(ImageHeader.ORIENTATION_NORMAL, ImageHeader.parse(invalid, invalid.length).orientation);
+    }
+
+    @Test
+    public void testPngHeader() throws IOException {
+        byte[] png = encode(33, 17, "png");
+        ImageHeader header = ImageHeader.parse(png, png.length);
+        Assert.assertEquals(ImageHeader.FORMAT_PNG, header.format);
+        Assert.assertEquals(33, header.width);
+        Assert.assertEquals(17, header.height);
+        Assert.assertEquals(ImageHeader.FORMAT_UNKNOWN, ImageHeader.parse(new byte[100], 100).format);
+    }
+
+    @Test
+    public void testWebpHeaders() {
+        // Lossy: frame tag, start code, 14-bit width and height.
+        byte[] lossy = webpHeader("VP8 ", new byte[] {
+                0, 0, 0, (byte) 0x9d, 0x01, 0x2a, (byte) 0x80, 0x07, 0x38, 0x04 });
+        ImageHeader header = ImageHeader.parse(lossy, lossy.length);
+        Assert.assertEquals(ImageHeader.FORMAT_WEBP, header.format);
+        Assert.assertEquals(1920, header.width);
+        Assert.assertEquals(1080, header.height);
+
+        // Lossless: signature, then width - 1 and height - 1 in 14 bits each.
+        int bits = (640 - 1) | ((480 - 1) << 14);
+        byte[] lossless = webpHeader("VP8L", new byte[] {
+                0x2f, (byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), (byte) (bits >> 24) });
+        header = ImageHeader.parse(lossless, lossless.length);
+        Assert.assertEquals(640, header.width);
+        Assert.assertEquals(480, header.height);
+
+        // Extended: flags, then canvas width - 1 and height - 1 in 24 bits each.
+        byte[] extended = webpHeader("VP8X", new byte[] {
+                0x10, 0, 0, 0, (byte) 0x6f, (byte) 0x17, 0, (byte) 0x9f, (byte) 0x0f, 0 });
+        header = ImageHeader.parse(extended, extended.length);
+        Assert.assertEquals(6000, header.width);
+        Assert.assertEquals(4000, header.height);
+    }
+
+    @Test
+    public void testSampleSizePerFormat() {
+        ImageHeader jpeg = new ImageHeader(ImageHeader.FORMAT_JPEG, 6000, 4000);
+        ImageHeader webp = new ImageHeader(ImageHeader.FORMAT_WEBP, 6000, 4000);
+        ImageHeader huge = new ImageHeader(ImageHeader.FORMAT_JPEG, 16000, 12000);
+        Assert.assertEquals(2, new JpegFrameDecoder().getSampleSize(jpeg, 1920, 1080));
+        Assert.assertEquals(8, new JpegFrameDecoder().getSampleSize(huge, 800, 600));
+        Assert.assertEquals(3, new WebpFrameDecoder().getSampleSize(webp, 1920, 1080));
+        Assert.assertEquals(1, new JpegFrameDecoder().getSampleSize(jpeg, 0, 0));
+        // A portrait shot fills a portrait target once it has been rotated.
+        ImageHeader portrait = new ImageHeader(ImageHeader.FORMAT_JPEG, 6000, 4000,
+                ImageHeader.ORIENTATION_ROTATE_90);
+        Assert.assertEquals(1, new JpegFrameDecoder().getSampleSize(jpeg, 2000, 3000));
+        Assert.assertEquals(2, new JpegFrameDecoder().getSampleSize(portrait, 2000, 3000));
+
+        DecoderRegistry<Object> registry = new DecoderRegistry<>();
+        Assert.assertNull(registry.select(jpeg));
+    }
+
+    @Test
+    public void testReferenceDecodeToTargetSize() throws IOException {
+        DecoderRegistry<BufferedImage> registry = new DecoderRegistry<>();
+        registry.register(new ImageIoFrameDecoder());
+        byte[] jpeg = encode(4 * TARGET_WIDTH, 4 * TARGET_HEIGHT, "jpeg");
+
+        long start = System.nanoTime();
+        BufferedImage full = registry.decode(jpeg, jpeg.length, 0, 0, null);
+        long fullNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        BufferedImage scaled = registry.decode(jpeg, jpeg.length, TARGET_WIDTH, TARGET_HEIGHT, null);
+        long scaledNanos = System.nanoTime() - start;
+        System.out.println("Decoded " + full.getWidth() + "x" + full.getHeight() + " in "
+                + fullNanos / 1000 + " us, " + scaled.getWidth() + "x" + scaled.getHeight()
+                + " in " + scaledNanos / 1000 + " us.");
+
+        Assert.assertEquals(4 * TARGET_WIDTH, full.getWidth());
+        Assert.assertEquals(TARGET_WIDTH, scaled.getWidth());
+        Assert.assertEquals(TARGET_HEIGHT, scaled.getHeight());
+
+        // The file path decodes into the given target.
+        File file = File.createTempFile("image", ".jpg");
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(jpeg);
+            output.close();
+            Assert.assertSame(scaled, registry.decode(file, TARGET_WIDTH, TARGET_HEIGHT, scaled));
+        } finally {
+            file.delete();
+        }
+    }
+}
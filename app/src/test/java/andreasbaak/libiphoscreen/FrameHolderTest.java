@@ -0,0 +1,156 @@
+package andreasbaak.libiphoscreen;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class FrameHolderTest extends TestCase {
+
+    private static final int NUM_FRAMES = 5000;
+    private static final int NUM_READERS = 3;
+
+    private final FrameHolder holder = new FrameHolder();
+    /** All bitmaps that have been handed to the recycler. */
+    private final Set<Bitmap> recycled = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>()));
+    private final AtomicInteger recycledTwice = new AtomicInteger();
+
+    FrameHolder.Recycler recycler = new FrameHolder.Recycler() {
+        @Override
+        public void recycle(Bitmap bitmap) {
+            if (!recycled.add(bitmap)) {
+                recycledTwice.incrementAndGet();
+            }
+            bitmap.recycle();
+        }
+    };
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+    }
+
+    @Test
+    public void testLeaseKeepsReplacedFrameAlive() {
+        holder.setRecycler(recycler);
+        Bitmap first = createBitmap();
+        holder.publish(first);
+        FrameHolder.Lease lease = holder.acquire();
+
+        holder.publish(createBitmap());
+        Assert.assertFalse(first.isRecycled());
+        Assert.assertSame(first, lease.getBitmap());
+
+        lease.release();
+        Assert.assertTrue(first.isRecycled());
+        Assert.assertTrue(recycled.contains(first));
+        // Releasing a lease twice must not release the frame twice.
+        lease.release();
+        Assert.assertEquals(0, recycledTwice.get());
+    }
+
+    @Test
+    public void testClearWithoutLeases() {
+        Bitmap bitmap = createBitmap();
+        holder.publish(bitmap);
+        Assert.assertEquals(bitmap.getByteCount(), holder.getMemoryUsage());
+        holder.clear();
+        Assert.assertTrue(bitmap.isRecycled());
+        Assert.assertNull(holder.acquire());
+        Assert.assertEquals(0, holder.getMemoryUsage());
+    }
+
+    @Test
+    public void testTrimmedByBudget() {
+        final AtomicInteger trimmed = new AtomicInteger();
+        holder.setTrimListener(new FrameHolder.TrimListener() {
+            @Override
+            public void onFrameTrimmed() {
+                trimmed.incrementAndGet();
+            }
+        });
+        MemoryBudget budget = new MemoryBudget(1024);
+        budget.register(holder);
+        Bitmap bitmap = createBitmap();
+        holder.publish(bitmap);
+        FrameHolder.Lease lease = holder.acquire();
+        Assert.assertEquals(bitmap.getByteCount(), budget.getUsage());
+
+        // Only the loss of the process makes the budget drop the current frame.
+        budget.onLowMemory();
+        Assert.assertEquals(0, trimmed.get());
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        Assert.assertEquals(1, trimmed.get());
+        Assert.assertEquals(0, budget.getUsage());
+        Assert.assertNull(holder.acquire());
+        // The leased bitmap stays alive until the lease is released.
+        Assert.assertFalse(bitmap.isRecycled());
+        lease.release();
+        Assert.assertTrue(bitmap.isRecycled());
+    }
+
+    @Test
+    public void testConcurrentPublishAndLease() throws InterruptedException {
+        holder.setRecycler(recycler);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger usedAfterRecycle = new AtomicInteger();
+        final AtomicInteger leases = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < NUM_READERS; ++i) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        FrameHolder.Lease lease = holder.acquire();
+                        if (lease == null) {
+                            continue;
+                        }
+                        leases.incrementAndGet();
+                        if (lease.getBitmap().isRecycled()) {
+                            usedAfterRecycle.incrementAndGet();
+                        }
+                        lease.release();
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        List<Bitmap> published = new ArrayList<>();
+        for (int i = 0; i < NUM_FRAMES; ++i) {
+            Bitmap bitmap = createBitmap();
+            published.add(bitmap);
+            holder.publish(bitmap);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        holder.clear();
+
+        Assert.assertTrue(leases.get() > 0);
+        Assert.assertEquals(0, usedAfterRecycle.get());
+        Assert.assertEquals(0, recycledTwice.get());
+        Assert.assertEquals(NUM_FRAMES, recycled.size());
+        for (Bitmap bitmap : published) {
+            Assert.assertTrue(bitmap.isRecycled());
+        }
+    }
+}
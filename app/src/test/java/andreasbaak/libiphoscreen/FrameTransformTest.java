@@ -0,0 +1,68 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class FrameTransformTest extends TestCase {
+
+    private static final float DELTA = 1e-3f;
+
+    private static void assertMaps(FrameTransform transform, float x, float y,
+                                   float expectedX, float expectedY) {
+        Assert.assertEquals(expectedX, transform.mapX(x, y), DELTA);
+        Assert.assertEquals(expectedY, transform.mapY(x, y), DELTA);
+    }
+
+    @Test
+    public void testIdentity() {
+        FrameTransform transform = FrameTransform.compute(300, 200, ImageHeader.ORIENTATION_NORMAL, 1.5f, 0, 0);
+        Assert.assertTrue(transform.isIdentity());
+        Assert.assertEquals(300, transform.outputWidth);
+        Assert.assertEquals(200, transform.outputHeight);
+    }
+
+    @Test
+    public void testOrientations() {
+        int w = 30;
+        int h = 20;
+        // Where the top left corner of the decoded image ends up after orientation.
+        float[][] topLeft = {
+                {0, 0}, {w, 0}, {w, h}, {0, h}, {0, 0}, {h, 0}, {h, w}, {0, w}};
+        for (int orientation = 1; orientation <= 8; ++orientation) {
+            FrameTransform transform = FrameTransform.compute(w, h, orientation, 0, 0, 0);
+            boolean transposed = orientation >= ImageHeader.ORIENTATION_TRANSPOSE;
+            Assert.assertEquals(transposed ? h : w, transform.outputWidth);
+            Assert.assertEquals(transposed ? w : h, transform.outputHeight);
+            assertMaps(transform, 0, 0, topLeft[orientation - 1][0], topLeft[orientation - 1][1]);
+            Assert.assertEquals(orientation == ImageHeader.ORIENTATION_NORMAL, transform.isIdentity());
+        }
+        // Rotated clockwise: the bottom left corner becomes the top left corner.
+        assertMaps(FrameTransform.compute(w, h, ImageHeader.ORIENTATION_ROTATE_90, 0, 0, 0), 0, h, 0, 0);
+        assertMaps(FrameTransform.compute(w, h, ImageHeader.ORIENTATION_ROTATE_270, 0, 0, 0), w, 0, 0, 0);
+    }
+
+    @Test
+    public void testCropAndScaleToTarget() {
+        // A 4:3 image is cropped to 3:2 and scaled down into a 1200x1000 view.
+        FrameTransform transform = FrameTransform.compute(4000, 3000, ImageHeader.ORIENTATION_NORMAL,
+                1.5f, 1200, 1000);
+        Assert.assertEquals(1200, transform.outputWidth);
+        Assert.assertEquals(800, transform.outputHeight);
+        assertMaps(transform, 0, 166.667f, 0, 0);
+        assertMaps(transform, 4000, 2833.333f, 1200, 800);
+
+        // A portrait shot is rotated first and then cropped to a landscape frame.
+        transform = FrameTransform.compute(4000, 3000, ImageHeader.ORIENTATION_ROTATE_90, 1.5f, 1200, 1000);
+        Assert.assertEquals(1200, transform.outputWidth);
+        Assert.assertEquals(800, transform.outputHeight);
+        assertMaps(transform, 1000, 3000, 0, 0);
+        assertMaps(transform, 3000, 0, 1200, 800);
+    }
+}
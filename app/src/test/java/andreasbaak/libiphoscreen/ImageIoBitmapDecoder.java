@@ -0,0 +1,59 @@
+package andreasbaak.libiphoscreen;
+
+import android.graphics.Bitmap;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decoder for the DecodeWorker in JVM tests, where BitmapFactory cannot decode.
+ *
+ * The image is decoded by the ImageIoFrameDecoder, so that the decode takes the time of a
+ * real decode, and the result is a Bitmap of the decoded size. The pixels are not copied
+ * into the bitmap, since the bitmaps of the test runtime do not hold any. Like the decoders
+ * of the app, the target bitmap is reused if it has the size of the decoded image.
+ */
+public class ImageIoBitmapDecoder implements FrameDecoder<Bitmap> {
+    private final ImageIoFrameDecoder mDecoder = new ImageIoFrameDecoder();
+    /** Reused for every decode, like the target bitmap. */
+    private BufferedImage mImage;
+
+    @Override
+    public boolean supports(int format) {
+        return mDecoder.supports(format);
+    }
+
+    @Override
+    public int getSampleSize(ImageHeader header, int targetWidth, int targetHeight) {
+        return mDecoder.getSampleSize(header, targetWidth, targetHeight);
+    }
+
+    @Override
+    public Bitmap decode(byte[] data, int length, int sampleSize, Bitmap target) {
+        mImage = mDecoder.decode(data, length, sampleSize, mImage);
+        return toBitmap(target);
+    }
+
+    @Override
+    public Bitmap decode(File file, int sampleSize, Bitmap target) throws IOException {
+        mImage = mDecoder.decode(file, sampleSize, mImage);
+        return toBitmap(target);
+    }
+
+    private Bitmap toBitmap(Bitmap target) {
+        if (mImage == null) {
+            return null;
+        }
+        int width = mImage.getWidth();
+        int height = mImage.getHeight();
+        if (target != null && target.isMutable()
+                && target.getWidth() == width && target.getHeight() == height) {
+            return target;
+        }
+        if (target != null) {
+            target.recycle();
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+}
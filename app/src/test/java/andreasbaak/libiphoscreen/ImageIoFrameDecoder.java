@@ -0,0 +1,74 @@
+package andreasbaak.libiphoscreen;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Pure-JVM reference decoder for tests and benchmarks.
+ *
+ * Uses the same sample sizes as the decoders of the app, see JpegFrameDecoder,
+ * and reuses the target image if it has the size of the decoded image.
+ */
+public class ImageIoFrameDecoder implements FrameDecoder<BufferedImage> {
+
+    @Override
+    public boolean supports(int format) {
+        return format == ImageHeader.FORMAT_JPEG || format == ImageHeader.FORMAT_PNG;
+    }
+
+    @Override
+    public int getSampleSize(ImageHeader header, int targetWidth, int targetHeight) {
+        int maxSampleSize = header.format == ImageHeader.FORMAT_JPEG
+                ? JpegFrameDecoder.MAX_SAMPLE_SIZE : Integer.MAX_VALUE;
+        return header.getSampleSize(targetWidth, targetHeight, maxSampleSize, true);
+    }
+
+    @Override
+    public BufferedImage decode(byte[] data, int length, int sampleSize, BufferedImage target) {
+        try {
+            return decode(ImageIO.createImageInputStream(new ByteArrayInputStream(data, 0, length)),
+                    sampleSize, target);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public BufferedImage decode(File file, int sampleSize, BufferedImage target) throws IOException {
+        return decode(ImageIO.createImageInputStream(file), sampleSize, target);
+    }
+
+    private static BufferedImage decode(ImageInputStream input, int sampleSize, BufferedImage target)
+            throws IOException {
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                int width = (reader.getWidth(0) + sampleSize - 1) / sampleSize;
+                int height = (reader.getHeight(0) + sampleSize - 1) / sampleSize;
+                if (target != null && target.getWidth() == width && target.getHeight() == height) {
+                    param.setDestination(target);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package andreasbaak.libiphoscreen;
 
-import android.os.AsyncTask;
-
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -9,7 +7,6 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
@@ -25,6 +22,7 @@ import java.util.concurrent.TimeUnit;
 public class ImageReceiverTest extends TestCase {
 
     private MockServer server;
+    private final TransportExecutor executor = new TransportExecutor("test", 1);
 
     class MockServer {
 
@@ -93,14 +91,14 @@ public class ImageReceiverTest extends TestCase {
         public void onImageTaken() {
             System.out.println("onImageTaken.");
             imageTakenLatch.countDown();
-            receiver.cancel(true);
+            receiver.cancel();
         }
 
         @Override
-        public void onImageReceived(byte[] imageBuffer) {
-            System.out.println("onImageReceived: received a buffer of size " + Integer.toString(imageBuffer.length));
+        public void onImageReceived(ImageBuffer image) {
+            System.out.println("onImageReceived: received a buffer of size " + Integer.toString(image.getLength()));
             imageReceivedLatch.countDown();
-            receiver.cancel(true);
+            receiver.cancel();
         }
     };
 
@@ -127,6 +125,7 @@ public class ImageReceiverTest extends TestCase {
 
     @After
     public void stopServer() {
+        Assert.assertTrue(executor.shutdown(5000));
         if (server != null) {
             server.cleanup();
             server = null;
@@ -147,8 +146,7 @@ public class ImageReceiverTest extends TestCase {
                 return;
             }
         }).start();
-        receiver.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-        Robolectric.flushBackgroundThreadScheduler();
+        executor.execute(receiver);
         System.out.println("Waiting for imageTakenLatch...");
 //        Assert.assertTrue(imageTakenLatch.await(10, TimeUnit.SECONDS));
         Assert.assertTrue(imageTakenLatch.await(10, TimeUnit.SECONDS));
@@ -170,8 +168,7 @@ public class ImageReceiverTest extends TestCase {
             }
         }).start();
 
-        receiver.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-        Robolectric.flushBackgroundThreadScheduler();
+        executor.execute(receiver);
         Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
 //        receiver.cancel(true);
     }
@@ -0,0 +1,510 @@
+package andreasbaak.libiphoscreen;
+
+import android.graphics.Bitmap;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * End-to-end latency suite for the receive path: a loopback server sends images to the
+ * real ImageReceiver, whose listener feeds the FramePipeline like the ImageHandler of
+ * Screen does. The pipeline decodes and processes each image on the DecodeWorker and
+ * publishes it to a FrameHolder, from which the frame is leased like by the image view.
+ * Only the decoder is replaced by a pure-JVM one, see ImageIoBitmapDecoder.
+ *
+ * Every scenario of the matrix of payload sizes, burst lengths and bandwidths is checked
+ * against a budget for the p95 latency from TAKEN until the frame is ready for display,
+ * and against a budget for the bytes that the receiver allocates per frame. So are the
+ * single images with a gap between TAKEN and DATA that compare the latency with and without
+ * the warm-up of the pipeline. A JSON report
+ * of all scenarios is written to the file given by the system property latency.report,
+ * which app/build.gradle points into the build directory.
+ * The latency budgets can be scaled for slow machines with the property latency.budgetScale.
+ *
+ * The budgets are wall-clock times, so the suite is not part of the default test run.
+ * Run it with ./gradlew latencyTest, as CI does, or with ./gradlew test -Pperformance,
+ * see app/build.gradle.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+@Category(PerformanceTest.class)
+public class LatencyRegressionTest extends TestCase {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 1382;
+    private static final int TARGET_WIDTH = 1280;
+    private static final int TARGET_HEIGHT = 800;
+    /** Measured frames per scenario, a multiple of all burst lengths. */
+    private static final int FRAMES = 6;
+    /**
+     * Bursts of the longest length that are sent before each scenario and not measured.
+     * They fill the receive pool and the bitmaps of the decode worker for the image size,
+     * and give the JIT a chance to compile the path.
+     */
+    private static final int WARMUP_BURSTS = 2;
+    private static final long FRAME_TIMEOUT_SECONDS = 30;
+    /**
+     * Gap between TAKEN and DATA in the warm-up comparison. On site it is one to three
+     * seconds, which only lengthens the test, since the warm-up is done long before.
+     */
+    private static final long TAKEN_GAP_MILLIS = 300;
+
+    private static final int[][] IMAGE_SIZES = {{640, 480}, {2048, 1536}, {4000, 3000}};
+    private static final int[] BURST_LENGTHS = {1, 3};
+    /** Unlimited, and 80 Mbit/s as reached by 802.11n at a wedding venue. */
+    private static final long[] BANDWIDTHS = {0, 10 * 1000 * 1000};
+
+    /** Latency budget: fixed cost, plus decode time per megapixel, plus the transfer time. */
+    private static final long BASE_LATENCY_MILLIS = 150;
+    private static final long DECODE_MILLIS_PER_MEGAPIXEL = 40;
+    /**
+     * The receiver receives into pooled arrays, so once warmed up, it must not allocate
+     * anything of the size of the payload.
+     */
+    private static final long RECEIVE_ALLOCATION_BUDGET = 64 * 1024;
+    private static final long MEMORY_BUDGET = 512L * 1024 * 1024;
+
+    private static final String REPORT_PROPERTY = "latency.report";
+    private static final String DEFAULT_REPORT_NAME = "latency.json";
+    private static final String BUDGET_SCALE_PROPERTY = "latency.budgetScale";
+
+    private final LoopbackImageServer server = new LoopbackImageServer(HOST, PORT);
+    private final TransportExecutor executor = new TransportExecutor("latency", 1);
+    private final MemoryBudget memoryBudget = new MemoryBudget(MEMORY_BUDGET);
+    private final FrameHolder frameHolder = new FrameHolder();
+    private DecodeWorker decodeWorker;
+    private FramePipeline pipeline;
+    private final BlockingQueue<Frame> displayed = new LinkedBlockingQueue<>();
+
+    /** Written and read on the receiver thread. */
+    private long takenNanos;
+    private long takenAllocatedBytes;
+    /** Images that have been handed to the pipeline, in the order of the decodes. */
+    private final BlockingQueue<long[]> pending = new LinkedBlockingQueue<>();
+    /** Only used on the decode thread. */
+    private long decodeAllocatedBytes;
+    private FrameHolder.Lease displayedFrame;
+
+    private static class Frame {
+        /** From TAKEN until the frame is ready for display. */
+        final long latencyNanos;
+        /** From the end of DATA until the frame is ready for display. */
+        final long dataLatencyNanos;
+        final long receiveAllocatedBytes;
+        final long decodeAllocatedBytes;
+        final boolean decoded;
+
+        Frame(long latencyNanos, long dataLatencyNanos, long receiveAllocatedBytes, long decodeAllocatedBytes,
+                boolean decoded) {
+            this.latencyNanos = latencyNanos;
+            this.dataLatencyNanos = dataLatencyNanos;
+            this.receiveAllocatedBytes = receiveAllocatedBytes;
+            this.decodeAllocatedBytes = decodeAllocatedBytes;
+            this.decoded = decoded;
+        }
+    }
+
+    private static class Scenario {
+        final int width;
+        final int height;
+        final int burstLength;
+        final long bytesPerSecond;
+        final byte[] image;
+        /** Gap between TAKEN and DATA, or 0 for back-to-back bursts. */
+        final long takenGapMillis;
+        final boolean warmUp;
+        final boolean trimmed;
+
+        Scenario(int width, int height, int burstLength, long bytesPerSecond, byte[] image) {
+            this(width, height, burstLength, bytesPerSecond, image, 0, true, false);
+        }
+
+        Scenario(int width, int height, int burstLength, long bytesPerSecond, byte[] image,
+                long takenGapMillis, boolean warmUp, boolean trimmed) {
+            this.width = width;
+            this.height = height;
+            this.burstLength = burstLength;
+            this.bytesPerSecond = bytesPerSecond;
+            this.image = image;
+            this.takenGapMillis = takenGapMillis;
+            this.warmUp = warmUp;
+            this.trimmed = trimmed;
+        }
+
+        String getName() {
+            String name = width + "x" + height + "-burst" + burstLength + "-"
+                    + (bytesPerSecond == 0 ? "unlimited" : bytesPerSecond / 1000 + "kBps");
+            if (takenGapMillis == 0) {
+                return name;
+            }
+            return name + "-gap" + takenGapMillis + "ms" + (trimmed ? "-trimmed" : "-steady")
+                    + (warmUp ? "-warmup" : "-nowarmup");
+        }
+
+        long getLatencyBudgetMillis(double scale) {
+            long transferMillis = bytesPerSecond == 0 ? 0 : image.length * 1000L / bytesPerSecond;
+            // Within a burst, a frame may wait for the decode of the frames before it.
+            long decodeMillis = DECODE_MILLIS_PER_MEGAPIXEL * width * height / 1000000 * burstLength;
+            return (long) ((BASE_LATENCY_MILLIS + decodeMillis + transferMillis) * scale) + takenGapMillis;
+        }
+
+        long getReceiveAllocationBudget() {
+            return RECEIVE_ALLOCATION_BUDGET;
+        }
+    }
+
+    private static class Result {
+        final Scenario scenario;
+        final long p50Nanos;
+        final long p95Nanos;
+        final long maxNanos;
+        final long dataP50Nanos;
+        final long dataP95Nanos;
+        final long maxReceiveAllocatedBytes;
+        final long meanDecodeAllocatedBytes;
+        final long latencyBudgetMillis;
+        final int undecoded;
+
+        Result(Scenario scenario, List<Frame> frames, double budgetScale) {
+            this.scenario = scenario;
+            long[] latencies = new long[frames.size()];
+            long[] dataLatencies = new long[frames.size()];
+            long maxReceive = 0;
+            long totalDecode = 0;
+            int undecoded = 0;
+            for (int i = 0; i < latencies.length; ++i) {
+                Frame frame = frames.get(i);
+                latencies[i] = frame.latencyNanos;
+                dataLatencies[i] = frame.dataLatencyNanos;
+                maxReceive = Math.max(maxReceive, frame.receiveAllocatedBytes);
+                totalDecode += frame.decodeAllocatedBytes;
+                if (!frame.decoded) {
+                    ++undecoded;
+                }
+            }
+            Arrays.sort(latencies);
+            p50Nanos = percentile(latencies, 50);
+            p95Nanos = percentile(latencies, 95);
+            maxNanos = latencies[latencies.length - 1];
+            Arrays.sort(dataLatencies);
+            dataP50Nanos = percentile(dataLatencies, 50);
+            dataP95Nanos = percentile(dataLatencies, 95);
+            maxReceiveAllocatedBytes = maxReceive;
+            meanDecodeAllocatedBytes = totalDecode / latencies.length;
+            latencyBudgetMillis = scenario.getLatencyBudgetMillis(budgetScale);
+            this.undecoded = undecoded;
+        }
+
+        /**
+         * @return the nearest-rank percentile of the sorted values.
+         */
+        private static long percentile(long[] sorted, int percent) {
+            int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        boolean isLatencyWithinBudget() {
+            return p95Nanos <= latencyBudgetMillis * 1000000;
+        }
+
+        boolean isAllocationWithinBudget() {
+            // Negative if the JVM cannot measure allocations.
+            return maxReceiveAllocatedBytes <= scenario.getReceiveAllocationBudget();
+        }
+
+        boolean isPassed() {
+            return undecoded == 0 && isLatencyWithinBudget() && isAllocationWithinBudget();
+        }
+    }
+
+    /**
+     * Does what Screen.ImageHandler does, minus the relays and the views.
+     */
+    ImageReceivedListener received = new ImageReceivedListener() {
+        @Override
+        public void onImageTaken() {
+            takenNanos = System.nanoTime();
+            takenAllocatedBytes = getAllocatedBytes();
+            pipeline.onImageTaken();
+        }
+
+        @Override
+        public void onImageReceived(ImageBuffer image) {
+            pending.add(new long[] {takenNanos, getAllocatedBytes() - takenAllocatedBytes});
+            pipeline.submit(image);
+        }
+    };
+
+    /**
+     * Takes the published frame like Screen.showCurrentFrame() does, but on the decode thread.
+     */
+    FramePipeline.Listener frameListener = new FramePipeline.Listener() {
+        @Override
+        public void onFrameReady(boolean published, long receivedAt) {
+            long[] image = pending.remove();
+            FrameHolder.Lease previous = displayedFrame;
+            displayedFrame = frameHolder.acquire();
+            if (previous != null) {
+                previous.release();
+            }
+            long now = System.nanoTime();
+            long allocated = getAllocatedBytes();
+            displayed.add(new Frame(now - image[0], now - receivedAt, image[1],
+                    allocated - decodeAllocatedBytes, published && displayedFrame != null));
+            decodeAllocatedBytes = allocated;
+        }
+    };
+
+    NetworkConnectionStatusListener networkConnectionStatusListener = new NetworkConnectionStatusListener() {
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    };
+
+    /**
+     * @return the number of bytes that the current thread has allocated so far,
+     * or a negative number if the JVM does not support measuring it.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Encode a JPEG with a gradient and some noise, so that its size
+     * is in the range of a camera image of the same resolution.
+     */
+    private static byte[] encode(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(width);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int noise = random.nextInt(32);
+                image.setRGB(x, y, (x * 223 / width + noise) << 16
+                        | (y * 223 / height + noise) << 8 | noise * 4);
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertTrue(ImageIO.write(image, "jpeg", output));
+        return output.toByteArray();
+    }
+
+    @Before
+    public void connect() throws IOException {
+        DecoderRegistry<Bitmap> decoders = new DecoderRegistry<>();
+        decoders.register(new ImageIoBitmapDecoder());
+        decodeWorker = new DecodeWorker(memoryBudget, decoders);
+        decodeWorker.setTargetSize(TARGET_WIDTH, TARGET_HEIGHT);
+        memoryBudget.register(frameHolder);
+        frameHolder.setRecycler(decodeWorker);
+        pipeline = new FramePipeline(decodeWorker, frameHolder, frameListener);
+
+        server.start();
+        ImageReceiver receiver = new ImageReceiver(HOST, PORT, received, networkConnectionStatusListener);
+        receiver.setMemoryBudget(memoryBudget);
+        executor.execute(receiver);
+        server.accept();
+    }
+
+    @After
+    public void disconnect() throws IOException {
+        Assert.assertTrue(executor.shutdown(5000));
+        server.stop();
+        decodeWorker.shutdown();
+        frameHolder.clear();
+        if (displayedFrame != null) {
+            displayedFrame.release();
+        }
+    }
+
+    private List<Frame> send(Scenario scenario, int numFrames) throws Exception {
+        List<Frame> frames = new ArrayList<>();
+        while (frames.size() < numFrames) {
+            for (int i = 0; i < scenario.burstLength; ++i) {
+                server.sendTaken();
+                server.sendImage(scenario.image);
+            }
+            for (int i = 0; i < scenario.burstLength; ++i) {
+                Frame frame = displayed.poll(FRAME_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                Assert.assertNotNull("Timeout in " + scenario.getName(), frame);
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    private Result run(Scenario scenario, double budgetScale) throws Exception {
+        // Not measured: back-to-back bursts take as many receive arrays as a scenario can.
+        int maxBurstLength = BURST_LENGTHS[BURST_LENGTHS.length - 1];
+        server.setBandwidth(0);
+        send(new Scenario(scenario.width, scenario.height, maxBurstLength, 0, scenario.image),
+                WARMUP_BURSTS * maxBurstLength);
+        server.setBandwidth(scenario.bytesPerSecond);
+        return new Result(scenario, send(scenario, FRAMES), budgetScale);
+    }
+
+    /**
+     * Sends single images with a gap between TAKEN and DATA like on site, with the warm-up
+     * of the pipeline enabled or not. If trimmed, the bitmaps of the decode worker are dropped
+     * before each image, like after the budget has trimmed them while the screen was idle.
+     */
+    private Result runWithGap(Scenario scenario, double budgetScale) throws Exception {
+        server.setBandwidth(0);
+        send(scenario, FRAMES);
+        pipeline.setWarmUp(scenario.warmUp);
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 0; i < FRAMES; ++i) {
+            if (scenario.trimmed) {
+                decodeWorker.trimMemory();
+            }
+            server.sendTaken();
+            Thread.sleep(scenario.takenGapMillis);
+            server.sendImage(scenario.image);
+            Frame frame = displayed.poll(FRAME_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.assertNotNull("Timeout in " + scenario.getName(), frame);
+            frames.add(frame);
+        }
+        pipeline.setWarmUp(true);
+        return new Result(scenario, frames, budgetScale);
+    }
+
+    @Test
+    public void testLatencyAndAllocationBudgets() throws Exception {
+        double budgetScale = Double.parseDouble(System.getProperty(BUDGET_SCALE_PROPERTY, "1"));
+        List<Result> results = new ArrayList<>();
+        for (int[] size : IMAGE_SIZES) {
+            byte[] image = encode(size[0], size[1]);
+            for (int burstLength : BURST_LENGTHS) {
+                for (long bandwidth : BANDWIDTHS) {
+                    results.add(print(run(new Scenario(size[0], size[1], burstLength, bandwidth, image),
+                            budgetScale)));
+                }
+            }
+        }
+        results.addAll(compareWarmUp(budgetScale));
+        writeReport(getReportFile(), results, budgetScale);
+
+        StringBuilder failures = new StringBuilder();
+        for (Result result : results) {
+            if (!result.isPassed()) {
+                failures.append(result.scenario.getName()).append(' ');
+            }
+        }
+        Assert.assertEquals("Scenarios over budget", "", failures.toString());
+    }
+
+    /**
+     * Compares the latency with and without the warm-up for the largest image. The warm-up only
+     * pays off if the bitmaps have to be allocated, i.e. after they have been trimmed, and their
+     * allocation is much cheaper in this runtime than on a device, so the comparison is reported
+     * rather than asserted. Both have to stay within the latency budget plus the gap.
+     */
+    private List<Result> compareWarmUp(double budgetScale) throws Exception {
+        int[] size = IMAGE_SIZES[IMAGE_SIZES.length - 1];
+        byte[] image = encode(size[0], size[1]);
+        List<Result> results = new ArrayList<>();
+        for (boolean trimmed : new boolean[] {false, true}) {
+            for (boolean warmUp : new boolean[] {false, true}) {
+                results.add(print(runWithGap(new Scenario(size[0], size[1], 1, 0, image,
+                        TAKEN_GAP_MILLIS, warmUp, trimmed), budgetScale)));
+            }
+        }
+        return results;
+    }
+
+    private static Result print(Result result) {
+        System.out.println(String.format(Locale.US,
+                "%s: %d bytes, p50 %d ms, p95 %d ms of %d ms, after DATA p50 %d ms, p95 %d ms, "
+                        + "receive allocated %d bytes",
+                result.scenario.getName(), result.scenario.image.length, result.p50Nanos / 1000000,
+                result.p95Nanos / 1000000, result.latencyBudgetMillis, result.dataP50Nanos / 1000000,
+                result.dataP95Nanos / 1000000, result.maxReceiveAllocatedBytes));
+        return result;
+    }
+
+    /**
+     * @return the file given by the property latency.report, or a file in the temporary
+     * directory if the property is not set. A relative default would resolve against the
+     * working directory of the test, which may well be in the source tree.
+     */
+    private static File getReportFile() {
+        String path = System.getProperty(REPORT_PROPERTY);
+        if (path == null || path.isEmpty()) {
+            return new File(System.getProperty("java.io.tmpdir"), DEFAULT_REPORT_NAME);
+        }
+        return new File(path);
+    }
+
+    private static void writeReport(File file, List<Result> results, double budgetScale) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory()) {
+            Assert.assertTrue(directory.mkdirs());
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"budgetScale\": ").append(String.format(Locale.US, "%.2f", budgetScale));
+        json.append(",\n  \"scenarios\": [");
+        for (int i = 0; i < results.size(); ++i) {
+            Result result = results.get(i);
+            Scenario scenario = result.scenario;
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append(String.format(Locale.US, "    {\"name\": \"%s\", \"width\": %d, \"height\": %d, "
+                            + "\"payloadBytes\": %d, \"burstLength\": %d, \"bytesPerSecond\": %d, "
+                            + "\"takenGapMillis\": %d, \"warmUp\": %b, \"trimmed\": %b, "
+                            + "\"frames\": %d, \"p50Millis\": %.3f, \"p95Millis\": %.3f, \"maxMillis\": %.3f, "
+                            + "\"dataP50Millis\": %.3f, \"dataP95Millis\": %.3f, "
+                            + "\"latencyBudgetMillis\": %d, \"receiveAllocatedBytes\": %d, "
+                            + "\"receiveAllocationBudget\": %d, \"decodeAllocatedBytes\": %d, \"passed\": %b}",
+                    scenario.getName(), scenario.width, scenario.height, scenario.image.length,
+                    scenario.burstLength, scenario.bytesPerSecond, scenario.takenGapMillis,
+                    scenario.warmUp, scenario.trimmed, FRAMES,
+                    result.p50Nanos / 1e6, result.p95Nanos / 1e6, result.maxNanos / 1e6,
+                    result.dataP50Nanos / 1e6, result.dataP95Nanos / 1e6,
+                    result.latencyBudgetMillis, result.maxReceiveAllocatedBytes,
+                    scenario.getReceiveAllocationBudget(), result.meanDecodeAllocatedBytes,
+                    result.isPassed()));
+        }
+        json.append("\n  ]\n}\n");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package andreasbaak.libiphoscreen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays the part of the photobooth server over loopback: accepts a single client on
+ * the image port and sends TAKEN and DATA commands to it.
+ *
+ * The image data can be throttled to a given bandwidth, so that the receive path can be
+ * measured under the conditions of a wireless network instead of those of loopback.
+ */
+public class LoopbackImageServer {
+    /** Bytes that are written at once when the data is throttled. */
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final String mHost;
+    private final int mPort;
+    private ServerSocket mServer;
+    private Socket mClient;
+    private OutputStream mOutput;
+    private long mBytesPerSecond;
+
+    public LoopbackImageServer(int port) {
+        this("127.0.0.1", port);
+    }
+
+    /**
+     * @param host loopback address to listen on. Servers on different addresses of
+     * 127.0.0.0/8 can share a port, which lets one receiver connect to several of them.
+     */
+    public LoopbackImageServer(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    public void start() throws IOException {
+        mServer = new ServerSocket();
+        mServer.setReuseAddress(true);
+        mServer.bind(new InetSocketAddress(mHost, mPort));
+    }
+
+    /**
+     * Wait for the receiver to connect.
+     */
+    public void accept() throws IOException {
+        mClient = mServer.accept();
+        mClient.setTcpNoDelay(true);
+        mOutput = mClient.getOutputStream();
+    }
+
+    /**
+     * Limit the image data to the given number of bytes per second, or 0 for no limit.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    public void sendTaken() throws IOException {
+        mOutput.write(ImageProtocol.COMMAND_TAKEN);
+        mOutput.flush();
+    }
+
+    public void sendImage(byte[] image) throws IOException, InterruptedException {
+        ByteBuffer header = ByteBuffer.allocate(1 + ImageProtocol.SIZE_LENGTH);
+        header.put(ImageProtocol.COMMAND_DATA);
+        ImageProtocol.encodeImageSize(image.length, header);
+        mOutput.write(header.array());
+        if (mBytesPerSecond <= 0) {
+            mOutput.write(image);
+            mOutput.flush();
+            return;
+        }
+        long start = System.nanoTime();
+        for (int offset = 0; offset < image.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, image.length - offset);
+            mOutput.write(image, offset, length);
+            mOutput.flush();
+            // Wait until the bytes sent so far would have taken their time on the wire.
+            long dueNanos = (offset + length) * 1000000000L / mBytesPerSecond;
+            long remainingNanos = dueNanos - (System.nanoTime() - start);
+            if (remainingNanos > 0) {
+                Thread.sleep(remainingNanos / 1000000, (int) (remainingNanos % 1000000));
+            }
+        }
+    }
+
+    /**
+     * Send bytes as they are, e.g. in order to send a corrupt frame.
+     */
+    public void sendRaw(byte[] data) throws IOException {
+        mOutput.write(data);
+        mOutput.flush();
+    }
+
+    public void stop() throws IOException {
+        if (mClient != null) {
+            mClient.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package andreasbaak.libiphoscreen;
+
+import android.content.ComponentCallbacks2;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the budget trims its owners in priority order and never trims
+ * owners whose data is at least as important as that of the requester.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class MemoryBudgetTest extends TestCase {
+
+    private static final long BUDGET = 1000;
+
+    private final List<String> trimmed = new ArrayList<>();
+
+    private class TestOwner implements MemoryBudget.Owner {
+        private final String mName;
+        private final int mPriority;
+        private long mUsage;
+
+        TestOwner(String name, int priority, long usage) {
+            mName = name;
+            mPriority = priority;
+            mUsage = usage;
+        }
+
+        @Override
+        public long getMemoryUsage() {
+            return mUsage;
+        }
+
+        @Override
+        public int getTrimPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void trimMemory() {
+            trimmed.add(mName);
+            mUsage = 0;
+        }
+    }
+
+    private final MemoryBudget budget = new MemoryBudget(BUDGET);
+    private final TestOwner cache = new TestOwner("cache", MemoryBudget.PRIORITY_CACHE, 300);
+    private final TestOwner buffer = new TestOwner("buffer", MemoryBudget.PRIORITY_BUFFER, 300);
+    private final TestOwner display = new TestOwner("display", MemoryBudget.PRIORITY_DISPLAY, 300);
+
+    private void registerAll() {
+        // Register in reverse order so that the order of trimming cannot come from the list.
+        budget.register(display);
+        budget.register(buffer);
+        budget.register(cache);
+    }
+
+    @Test
+    public void testUsage() {
+        registerAll();
+        budget.register(cache);
+        Assert.assertEquals(900, budget.getUsage());
+        budget.unregister(cache);
+        Assert.assertEquals(600, budget.getUsage());
+    }
+
+    @Test
+    public void testNoTrimIfAllocationFits() {
+        registerAll();
+        Assert.assertTrue(budget.ensureAvailable(100, display));
+        Assert.assertTrue(trimmed.isEmpty());
+    }
+
+    @Test
+    public void testCachesAreTrimmedBeforeBuffers() {
+        registerAll();
+        Assert.assertTrue(budget.ensureAvailable(300, display));
+        Assert.assertEquals(1, trimmed.size());
+        Assert.assertEquals("cache", trimmed.get(0));
+
+        trimmed.clear();
+        Assert.assertTrue(budget.ensureAvailable(600, display));
+        Assert.assertEquals(2, trimmed.size());
+        Assert.assertEquals("cache", trimmed.get(0));
+        Assert.assertEquals("buffer", trimmed.get(1));
+    }
+
+    @Test
+    public void testRequesterPriorityIsNeverTrimmed() {
+        registerAll();
+        TestOwner otherBuffer = new TestOwner("other buffer", MemoryBudget.PRIORITY_BUFFER, 0);
+        budget.register(otherBuffer);
+        Assert.assertFalse(budget.ensureAvailable(800, otherBuffer));
+        Assert.assertEquals(1, trimmed.size());
+        Assert.assertEquals("cache", trimmed.get(0));
+        Assert.assertEquals(600, budget.getUsage());
+    }
+
+    @Test
+    public void testCacheCannotTrimAnything() {
+        registerAll();
+        Assert.assertFalse(budget.ensureAvailable(200, cache));
+        Assert.assertTrue(trimmed.isEmpty());
+    }
+
+    @Test
+    public void testTrimMemoryLevels() {
+        registerAll();
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        Assert.assertEquals(1, trimmed.size());
+        Assert.assertEquals("cache", trimmed.get(0));
+
+        trimmed.clear();
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        Assert.assertEquals(2, trimmed.size());
+        Assert.assertEquals("cache", trimmed.get(0));
+        Assert.assertEquals("buffer", trimmed.get(1));
+
+        trimmed.clear();
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        Assert.assertEquals(3, trimmed.size());
+        Assert.assertEquals("display", trimmed.get(2));
+        Assert.assertEquals(0, budget.getUsage());
+    }
+
+    @Test
+    public void testLowMemoryKeepsDisplay() {
+        registerAll();
+        budget.onLowMemory();
+        Assert.assertEquals(2, trimmed.size());
+        Assert.assertEquals(300, budget.getUsage());
+    }
+}
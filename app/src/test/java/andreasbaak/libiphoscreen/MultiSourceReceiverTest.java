@@ -0,0 +1,256 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects a single MultiSourceReceiver to a dozen loopback servers that all listen
+ * on the same ports, each on its own address of 127.0.0.0/8.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class MultiSourceReceiverTest extends TestCase {
+
+    private static final int IMAGE_PORT = 1384;
+    private static final int HEARTBEAT_PORT = 1385;
+    private static final int NUM_SOURCES = 12;
+    /** Throttle the servers, so that the images of all sources arrive interleaved. */
+    private static final long BYTES_PER_SECOND = 4 * 1024 * 1024;
+
+    private final TransportExecutor executor = new TransportExecutor("test", 1);
+    private final String[] serverIps = new String[NUM_SOURCES];
+    private final List<LoopbackImageServer> imageServers = new ArrayList<>();
+    private final List<LoopbackImageServer> heartbeatServers = new ArrayList<>();
+
+    private final byte[][] receivedImages = new byte[NUM_SOURCES][];
+    private final AtomicInteger takenCount = new AtomicInteger();
+    private CountDownLatch connectedLatch = new CountDownLatch(NUM_SOURCES);
+    private CountDownLatch disconnectedLatch = new CountDownLatch(1);
+    private CountDownLatch imageReceivedLatch = new CountDownLatch(NUM_SOURCES);
+    private volatile int disconnectedSource = -1;
+
+    MultiSourceListener listener = new MultiSourceListener() {
+        @Override
+        public void onImageTaken(int source) {
+            takenCount.incrementAndGet();
+        }
+
+        @Override
+        public void onImageReceived(int source, ImageBuffer image) {
+            synchronized (receivedImages) {
+                receivedImages[source] = Arrays.copyOf(image.getData(), image.getLength());
+            }
+            imageReceivedLatch.countDown();
+        }
+
+        @Override
+        public void onSourceConnected(int source) {
+            connectedLatch.countDown();
+        }
+
+        @Override
+        public void onSourceDisconnected(int source) {
+            // The receiver reports all sources as disconnected when it is created.
+            if (connectedLatch.getCount() == 0) {
+                disconnectedSource = source;
+                disconnectedLatch.countDown();
+            }
+        }
+    };
+
+    @Before
+    public void startServers() throws IOException {
+        for (int i = 0; i < NUM_SOURCES; ++i) {
+            serverIps[i] = "127.0.0." + (i + 1);
+            LoopbackImageServer imageServer = new LoopbackImageServer(serverIps[i], IMAGE_PORT);
+            imageServer.start();
+            imageServers.add(imageServer);
+            LoopbackImageServer heartbeatServer = new LoopbackImageServer(serverIps[i], HEARTBEAT_PORT);
+            heartbeatServer.start();
+            heartbeatServers.add(heartbeatServer);
+        }
+    }
+
+    @After
+    public void stopServers() throws IOException {
+        Assert.assertTrue(executor.shutdown(5000));
+        for (LoopbackImageServer server : imageServers) {
+            server.stop();
+        }
+        for (LoopbackImageServer server : heartbeatServers) {
+            server.stop();
+        }
+    }
+
+    private final MemoryBudget memoryBudget = new MemoryBudget(64 * 1024 * 1024);
+
+    private void connectAll() throws IOException, InterruptedException {
+        connectAll(null);
+    }
+
+    private void connectAll(TrafficCapture capture) throws IOException, InterruptedException {
+        MultiSourceReceiver receiver = new MultiSourceReceiver(serverIps, IMAGE_PORT, HEARTBEAT_PORT, listener);
+        receiver.setMemoryBudget(memoryBudget);
+        receiver.setTrafficCapture(capture);
+        executor.execute(receiver);
+        for (int i = 0; i < NUM_SOURCES; ++i) {
+            imageServers.get(i).accept();
+            heartbeatServers.get(i).accept();
+        }
+        Assert.assertTrue(connectedLatch.await(10, TimeUnit.SECONDS));
+    }
+
+    private static byte[] createImage(int source) {
+        byte[] data = new byte[200 * 1024 + 1000 * source];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i + source) % 0xff);
+        }
+        return data;
+    }
+
+    @Test
+    public void testImagesOfAllSourcesArrive() throws Exception {
+        connectAll();
+        final byte[][] images = new byte[NUM_SOURCES][];
+        final List<Exception> errors = new ArrayList<>();
+        Thread[] senders = new Thread[NUM_SOURCES];
+        for (int i = 0; i < NUM_SOURCES; ++i) {
+            images[i] = createImage(i);
+            final int source = i;
+            senders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LoopbackImageServer server = imageServers.get(source);
+                    server.setBandwidth(BYTES_PER_SECOND);
+                    try {
+                        server.sendTaken();
+                        server.sendImage(images[source]);
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+        Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(NUM_SOURCES, takenCount.get());
+        // The arrays went back to the pool, which accounts for them in the budget.
+        Assert.assertTrue(memoryBudget.getUsage() > 0);
+        synchronized (receivedImages) {
+            for (int i = 0; i < NUM_SOURCES; ++i) {
+                Assert.assertTrue("source " + i, Arrays.equals(images[i], receivedImages[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testLostSourceDoesNotAffectOthers() throws Exception {
+        connectAll();
+        int lost = NUM_SOURCES / 2;
+        imageServers.get(lost).stop();
+        Assert.assertTrue(disconnectedLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(lost, disconnectedSource);
+
+        imageReceivedLatch = new CountDownLatch(NUM_SOURCES - 1);
+        for (int i = 0; i < NUM_SOURCES; ++i) {
+            if (i != lost) {
+                imageServers.get(i).sendTaken();
+                imageServers.get(i).sendImage(createImage(i));
+            }
+        }
+        Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
+        synchronized (receivedImages) {
+            Assert.assertNull(receivedImages[lost]);
+        }
+    }
+
+    @Test
+    public void testInvalidImageSizeDisconnectsOnlyThatSource() throws Exception {
+        connectAll();
+        int corrupt = NUM_SOURCES / 3;
+        // All digits of the base-255 size at their maximum overflow the decoded size.
+        imageServers.get(corrupt).sendRaw(new byte[] {ImageProtocol.COMMAND_DATA,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+        Assert.assertTrue(disconnectedLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(corrupt, disconnectedSource);
+
+        imageReceivedLatch = new CountDownLatch(NUM_SOURCES - 1);
+        for (int i = 0; i < NUM_SOURCES; ++i) {
+            if (i != corrupt) {
+                imageServers.get(i).sendTaken();
+                imageServers.get(i).sendImage(createImage(i));
+            }
+        }
+        Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
+        synchronized (receivedImages) {
+            Assert.assertNull(receivedImages[corrupt]);
+        }
+    }
+
+    @Test
+    public void testTrafficOfEachSourceIsCaptured() throws Exception {
+        File file = File.createTempFile("multisource", ".capture");
+        try {
+            TrafficCapture capture = new TrafficCapture(file);
+            connectAll(capture);
+            for (int i = 0; i < NUM_SOURCES; ++i) {
+                imageServers.get(i).sendTaken();
+                imageServers.get(i).sendImage(createImage(i));
+            }
+            Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(executor.shutdown(5000));
+            capture.close();
+
+            ByteArrayOutputStream[] streams = new ByteArrayOutputStream[NUM_SOURCES];
+            for (int i = 0; i < NUM_SOURCES; ++i) {
+                streams[i] = new ByteArrayOutputStream();
+            }
+            TrafficCapture.Reader reader = new TrafficCapture.Reader(file);
+            while (reader.next()) {
+                for (int i = 0; i < NUM_SOURCES; ++i) {
+                    if (reader.getChannel() == TrafficCapture.getChannel(TrafficCapture.CHANNEL_IMAGE, i)) {
+                        streams[i].write(reader.getData());
+                    }
+                }
+            }
+            reader.close();
+            // The image channel of each source is recorded exactly as it has been sent.
+            for (int i = 0; i < NUM_SOURCES; ++i) {
+                byte[] image = createImage(i);
+                ByteBuffer expected = ByteBuffer.allocate(2 + ImageProtocol.SIZE_LENGTH + image.length);
+                expected.put(ImageProtocol.COMMAND_TAKEN);
+                expected.put(ImageProtocol.COMMAND_DATA);
+                ImageProtocol.encodeImageSize(image.length, expected);
+                expected.put(image);
+                Assert.assertTrue("source " + i, Arrays.equals(expected.array(), streams[i].toByteArray()));
+            }
+        } finally {
+            Assert.assertTrue(file.delete());
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class MulticastImageReceiverTest extends TestCase {
+
+    private static final String GROUP = "239.255.42.99";
+    private static final int MULTICAST_PORT = 1370;
+    private static final int RANGE_PORT = 1371;
+    /** Faster than on Wi-Fi, but slow enough for the receive buffer of loopback. */
+    private static final long SEND_RATE = 20 * 1000 * 1000;
+
+    private MulticastImageReceiver receiver;
+    private MulticastImageSender sender;
+    private RangeServer rangeServer;
+    private final TransportExecutor executor = new TransportExecutor("test", 3);
+
+    CountDownLatch imageTakenLatch = new CountDownLatch(1);
+    CountDownLatch imageReceivedLatch = new CountDownLatch(1);
+    byte[] receivedImage;
+
+    ImageReceivedListener received = new ImageReceivedListener() {
+        @Override
+        public void onImageTaken() {
+            imageTakenLatch.countDown();
+        }
+
+        @Override
+        public void onImageReceived(ImageBuffer image) {
+            receivedImage = Arrays.copyOf(image.getData(), image.getLength());
+            imageReceivedLatch.countDown();
+        }
+    };
+
+    NetworkConnectionStatusListener networkConnectionStatusListener = new NetworkConnectionStatusListener() {
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    };
+
+    @After
+    public void cleanup() {
+        Assert.assertTrue(executor.shutdown(5000));
+    }
+
+    private static byte[] createImage(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i * 7) & 0xff);
+        }
+        return data;
+    }
+
+    private static ImageBuffer keep(ImageBuffer result, ImageBuffer image) {
+        return image != null ? image : result;
+    }
+
+    private static boolean equals(byte[] expected, ImageBuffer image) {
+        return Arrays.equals(expected, Arrays.copyOf(image.getData(), image.getLength()));
+    }
+
+    /**
+     * Feed all datagrams of the image into the reassembler, except for the dropped chunks.
+     * @return the completed image, or null if it could not be completed.
+     */
+    private static ImageBuffer feed(ImageReassembler reassembler, int session, int imageId, byte[] image,
+                               int... droppedChunks) {
+        ByteBuffer packet = ByteBuffer.allocate(MulticastProtocol.MAX_PACKET_LENGTH);
+        int chunkCount = MulticastProtocol.getChunkCount(image.length);
+        ImageBuffer result = null;
+        for (int chunk = 0; chunk < chunkCount; ++chunk) {
+            boolean dropped = false;
+            for (int droppedChunk : droppedChunks) {
+                dropped |= droppedChunk == chunk;
+            }
+            if (!dropped) {
+                MulticastProtocol.writeDataPacket(packet, session, imageId, image, chunk);
+                result = keep(result, reassembler.onPacket(packet));
+            }
+            if (chunk % MulticastProtocol.GROUP_SIZE == MulticastProtocol.GROUP_SIZE - 1
+                    || chunk == chunkCount - 1) {
+                MulticastProtocol.writeParityPacket(packet, session, imageId, image,
+                        chunk / MulticastProtocol.GROUP_SIZE);
+                result = keep(result, reassembler.onPacket(packet));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testParityRecoversOneChunkPerGroup() {
+        byte[] image = createImage(20 * MulticastProtocol.CHUNK_SIZE + 123);
+        ImageReassembler reassembler = new ImageReassembler(new BufferPool(2));
+        // Drop one chunk in each of the first three groups, including the short last chunk.
+        ImageBuffer result = feed(reassembler, 1, 5, image, 0, 9, 20);
+        Assert.assertNotNull(result);
+        Assert.assertEquals(3, reassembler.getRecoveredChunks());
+        Assert.assertTrue(equals(image, result));
+        result.release();
+    }
+
+    @Test
+    public void testUnrecoverableChunksAreReportedAsRanges() {
+        byte[] image = createImage(20 * MulticastProtocol.CHUNK_SIZE + 123);
+        ImageReassembler reassembler = new ImageReassembler(new BufferPool(2));
+        Assert.assertNull(feed(reassembler, 1, 5, image, 2, 3, 20));
+
+        // Chunk 20 is recovered from parity, chunks 2 and 3 are in the same group.
+        List<int[]> ranges = reassembler.getMissingRanges();
+        Assert.assertEquals(1, ranges.size());
+        int offset = ranges.get(0)[0];
+        int length = ranges.get(0)[1];
+        Assert.assertEquals(2 * MulticastProtocol.CHUNK_SIZE, offset);
+        Assert.assertEquals(2 * MulticastProtocol.CHUNK_SIZE, length);
+
+        System.arraycopy(image, offset, reassembler.getBuffer(), offset, length);
+        ImageBuffer result = reassembler.markRangeReceived(offset, length);
+        Assert.assertNotNull(result);
+        Assert.assertTrue(equals(image, result));
+        result.release();
+    }
+
+    @Test
+    public void testRestartedSenderStartsNewSession() {
+        byte[] image = createImage(3 * MulticastProtocol.CHUNK_SIZE);
+        ImageReassembler reassembler = new ImageReassembler(new BufferPool(2));
+        ImageBuffer first = feed(reassembler, 1, 5, image);
+        Assert.assertNotNull(first);
+        first.release();
+        // Late datagrams of an earlier image of the same sender are ignored.
+        Assert.assertNull(feed(reassembler, 1, 4, image));
+        Assert.assertFalse(reassembler.isActive());
+
+        // A restarted sender counts from zero again, but in a new session.
+        ImageBuffer result = feed(reassembler, 2, 0, image);
+        Assert.assertNotNull(result);
+        Assert.assertEquals(2, reassembler.getSession());
+        Assert.assertTrue(equals(image, result));
+        result.release();
+    }
+
+    @Test
+    public void testImagesAreHandedOutWithoutCopy() {
+        byte[] image = createImage(10 * MulticastProtocol.CHUNK_SIZE + 1);
+        ImageReassembler reassembler = new ImageReassembler(new BufferPool(3));
+        ImageBuffer first = feed(reassembler, 1, 1, image);
+        Assert.assertTrue(equals(image, first));
+        // The next image is reassembled while the first one is still in use.
+        ImageBuffer second = feed(reassembler, 1, 2, image);
+        Assert.assertNotSame(first.getData(), second.getData());
+        byte[] firstData = first.getData();
+        first.release();
+
+        // Once released, the buffer of the first image is reused.
+        second.release();
+        ImageBuffer third = feed(reassembler, 1, 3, image);
+        Assert.assertTrue(third.getData() == firstData || third.getData() == second.getData());
+        Assert.assertTrue(equals(image, third));
+        third.release();
+    }
+
+    @Test
+    public void testMalformedPacketsAreRejected() {
+        byte[] image = createImage(3 * MulticastProtocol.CHUNK_SIZE + 10);
+        ByteBuffer packet = ByteBuffer.allocate(MulticastProtocol.MAX_PACKET_LENGTH);
+        MulticastProtocol.writeDataPacket(packet, 1, 5, image, 3);
+        Assert.assertTrue(MulticastProtocol.isWellFormed(packet));
+        // The last chunk carries only 10 bytes.
+        packet.limit(MulticastProtocol.HEADER_LENGTH + 9);
+        Assert.assertFalse(MulticastProtocol.isWellFormed(packet));
+
+        MulticastProtocol.writeDataPacket(packet, 1, 5, image, 0);
+        packet.limit(packet.limit() - 1);
+        Assert.assertFalse(MulticastProtocol.isWellFormed(packet));
+
+        MulticastProtocol.writeParityPacket(packet, 1, 5, image, 0);
+        Assert.assertTrue(MulticastProtocol.isWellFormed(packet));
+        packet.limit(packet.limit() - 1);
+        Assert.assertFalse(MulticastProtocol.isWellFormed(packet));
+
+        // Overwrite the image size at offset 13 and the chunk index at offset 17 of the header.
+        MulticastProtocol.writeDataPacket(packet, 1, 5, image, 0);
+        packet.putInt(13, -1);
+        Assert.assertFalse(MulticastProtocol.isWellFormed(packet));
+        packet.putInt(13, MulticastProtocol.MAX_IMAGE_SIZE + 1);
+        Assert.assertFalse(MulticastProtocol.isWellFormed(packet));
+        packet.putInt(13, image.length);
+        packet.putInt(17, 4);
+        Assert.assertFalse(MulticastProtocol.isWellFormed(packet));
+    }
+
+    /**
+     * Request a range from the range server.
+     * @return the range, or null if the server answered RANGE_UNAVAILABLE.
+     */
+    private static byte[] requestRange(Socket socket, int session, int imageId, int offset, int length)
+            throws IOException {
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.writeInt(session);
+        output.writeInt(imageId);
+        output.writeInt(offset);
+        output.writeInt(length);
+        output.flush();
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        if (input.readByte() != RangeServer.RANGE_OK) {
+            return null;
+        }
+        byte[] range = new byte[length];
+        input.readFully(range);
+        return range;
+    }
+
+    private Socket connectToRangeServer() throws Exception {
+        // The server binds its port in the background.
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                return new Socket("127.0.0.1", RANGE_PORT);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @Test
+    public void testRangeServerRejectsOverflowingRanges() throws Exception {
+        rangeServer = new RangeServer(RANGE_PORT);
+        executor.execute(rangeServer);
+        byte[] image = createImage(1000);
+        rangeServer.setLatestImage(3, 7, image);
+        Socket socket = connectToRangeServer();
+        try {
+            Assert.assertNull(requestRange(socket, 3, 7, 1, Integer.MAX_VALUE));
+            Assert.assertNull(requestRange(socket, 3, 7, Integer.MAX_VALUE, 1));
+            Assert.assertNull(requestRange(socket, 3, 7, 990, 11));
+            // The connection and the server are still usable.
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(image, 990, 1000),
+                    requestRange(socket, 3, 7, 990, 10)));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testRangeServerRetainsPreviousImage() throws Exception {
+        rangeServer = new RangeServer(RANGE_PORT);
+        executor.execute(rangeServer);
+        byte[] image = createImage(1000);
+        rangeServer.setLatestImage(3, 7, image);
+        rangeServer.setLatestImage(3, 8, createImage(10));
+        Socket socket = connectToRangeServer();
+        try {
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(image, 0, 100),
+                    requestRange(socket, 3, 7, 0, 100)));
+            rangeServer.setLatestImage(3, 9, createImage(10));
+            Assert.assertNull(requestRange(socket, 3, 7, 0, 100));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Send all datagrams of the image to the group, except for the dropped chunks.
+     */
+    private static void multicast(MulticastSocket socket, InetAddress group, int session, int imageId,
+                                  byte[] image, int... droppedChunks) throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(MulticastProtocol.MAX_PACKET_LENGTH);
+        int chunkCount = MulticastProtocol.getChunkCount(image.length);
+        for (int chunk = 0; chunk < chunkCount; ++chunk) {
+            boolean dropped = false;
+            for (int droppedChunk : droppedChunks) {
+                dropped |= droppedChunk == chunk;
+            }
+            if (!dropped) {
+                MulticastProtocol.writeDataPacket(packet, session, imageId, image, chunk);
+                socket.send(new DatagramPacket(packet.array(), packet.limit(), group, MULTICAST_PORT));
+            }
+            if (chunk % MulticastProtocol.GROUP_SIZE == MulticastProtocol.GROUP_SIZE - 1
+                    || chunk == chunkCount - 1) {
+                MulticastProtocol.writeParityPacket(packet, session, imageId, image,
+                        chunk / MulticastProtocol.GROUP_SIZE);
+                socket.send(new DatagramPacket(packet.array(), packet.limit(), group, MULTICAST_PORT));
+            }
+        }
+    }
+
+    @Test
+    public void testFallbackWhenNextImageStarts() throws Exception {
+        InetAddress group = InetAddress.getByName(GROUP);
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+        final BlockingQueue<byte[]> images = new LinkedBlockingQueue<>();
+        ImageReceivedListener listener = new ImageReceivedListener() {
+            @Override
+            public void onImageTaken() {
+            }
+
+            @Override
+            public void onImageReceived(ImageBuffer image) {
+                images.add(Arrays.copyOf(image.getData(), image.getLength()));
+            }
+        };
+
+        rangeServer = new RangeServer(RANGE_PORT);
+        executor.execute(rangeServer);
+        receiver = new MulticastImageReceiver(group, MULTICAST_PORT, loopback,
+                "127.0.0.1", RANGE_PORT, listener, networkConnectionStatusListener);
+        executor.execute(receiver);
+        // Give the receiver time to join the group.
+        Thread.sleep(500);
+
+        byte[] first = createImage(20 * MulticastProtocol.CHUNK_SIZE);
+        byte[] second = createImage(10 * MulticastProtocol.CHUNK_SIZE + 1);
+        MulticastSocket socket = new MulticastSocket();
+        try {
+            socket.setNetworkInterface(loopback);
+            // Like the sender, which makes each image available before multicasting it.
+            rangeServer.setLatestImage(1, 1, first);
+            // Two chunks of the first group are lost, which parity cannot recover.
+            multicast(socket, group, 1, 1, first, 0, 1);
+            rangeServer.setLatestImage(1, 2, second);
+            multicast(socket, group, 1, 2, second);
+        } finally {
+            socket.close();
+        }
+
+        byte[] image = images.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(image);
+        Assert.assertTrue(Arrays.equals(first, image));
+        image = images.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(image);
+        Assert.assertTrue(Arrays.equals(second, image));
+    }
+
+    @Test
+    public void testLoopbackBroadcast() throws Exception {
+        InetAddress group = InetAddress.getByName(GROUP);
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+
+        rangeServer = new RangeServer(RANGE_PORT);
+        executor.execute(rangeServer);
+        receiver = new MulticastImageReceiver(group, MULTICAST_PORT, loopback,
+                "127.0.0.1", RANGE_PORT, received, networkConnectionStatusListener);
+        executor.execute(receiver);
+        sender = new MulticastImageSender(group, MULTICAST_PORT, loopback, rangeServer);
+        sender.setRate(SEND_RATE);
+        executor.execute(sender);
+        // Give the receiver time to join the group.
+        Thread.sleep(500);
+
+        // A truncated datagram must not stop the receiver.
+        ByteBuffer truncated = ByteBuffer.allocate(MulticastProtocol.MAX_PACKET_LENGTH);
+        MulticastProtocol.writeDataPacket(truncated, 1, 0, createImage(10 * 1024 * 1024), 0);
+        MulticastSocket socket = new MulticastSocket();
+        try {
+            socket.setNetworkInterface(loopback);
+            socket.send(new DatagramPacket(truncated.array(), MulticastProtocol.HEADER_LENGTH + 10,
+                    group, MULTICAST_PORT));
+        } finally {
+            socket.close();
+        }
+
+        byte[] image = createImage(2 * 1024 * 1024 + 5);
+        sender.onImageTaken();
+        long start = System.nanoTime();
+        sender.onImageReceived(ImageBuffer.wrap(image));
+
+        Assert.assertTrue(imageTakenLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(Arrays.equals(image, receivedImage));
+        // The sender is paced, the image takes at least its time at the rate.
+        long minMillis = image.length * 1000L / SEND_RATE;
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 >= minMillis);
+    }
+}
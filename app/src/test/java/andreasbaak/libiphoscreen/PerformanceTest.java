@@ -0,0 +1,9 @@
+package andreasbaak.libiphoscreen;
+
+/**
+ * JUnit category of the tests that measure wall-clock time, such as latency budgets
+ * and benchmarks. Their results depend on the machine and its load, hence they are
+ * excluded from the default test run and run by the latencyTest task, see app/build.gradle.
+ */
+public interface PerformanceTest {
+}
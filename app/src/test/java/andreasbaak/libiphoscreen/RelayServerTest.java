@@ -0,0 +1,123 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class RelayServerTest extends TestCase {
+
+    private static final int RELAY_PORT = 1358;
+    private static final int RELAY_HEARTBEAT_PORT = 1359;
+    private static final int NUM_CLIENTS = 4;
+
+    private final TransportExecutor executor = new TransportExecutor("test", 1 + 2 * NUM_CLIENTS);
+    private RelayServer relay;
+
+    CountDownLatch imageTakenLatch = new CountDownLatch(NUM_CLIENTS);
+    CountDownLatch imageReceivedLatch = new CountDownLatch(NUM_CLIENTS);
+    final List<byte[]> receivedImages = new ArrayList<>();
+
+    ImageReceivedListener received = new ImageReceivedListener() {
+        @Override
+        public void onImageTaken() {
+            imageTakenLatch.countDown();
+        }
+
+        @Override
+        public void onImageReceived(ImageBuffer image) {
+            synchronized (receivedImages) {
+                receivedImages.add(Arrays.copyOf(image.getData(), image.getLength()));
+            }
+            imageReceivedLatch.countDown();
+        }
+    };
+
+    NetworkConnectionStatusListener networkConnectionStatusListener = new NetworkConnectionStatusListener() {
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    };
+
+    @Before
+    public void startRelay() {
+        relay = new RelayServer(RELAY_PORT, RELAY_HEARTBEAT_PORT);
+        executor.execute(relay);
+    }
+
+    @After
+    public void stopRelay() {
+        Assert.assertTrue(executor.shutdown(5000));
+    }
+
+    private void connectClients() throws InterruptedException {
+        for (int i = 0; i < NUM_CLIENTS; ++i) {
+            HeartbeatReceiver heartbeat = new HeartbeatReceiver("127.0.0.1", RELAY_HEARTBEAT_PORT);
+            executor.execute(heartbeat);
+            ImageReceiver receiver = new ImageReceiver("127.0.0.1", RELAY_PORT,
+                    received, networkConnectionStatusListener);
+            executor.execute(receiver);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (relay.getClientCount() < NUM_CLIENTS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(NUM_CLIENTS, relay.getClientCount());
+    }
+
+    private static byte[] createImage(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i % 0xff) & 0xff);
+        }
+        return data;
+    }
+
+    @Test
+    public void testFanOutToAllClients() throws InterruptedException {
+        connectClients();
+        byte[] image = createImage(3 * 1024 * 1024 + 17);
+        relay.onImageTaken();
+        relay.onImageReceived(ImageBuffer.wrap(image));
+
+        Assert.assertTrue(imageTakenLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
+        synchronized (receivedImages) {
+            Assert.assertEquals(NUM_CLIENTS, receivedImages.size());
+            for (byte[] receivedImage : receivedImages) {
+                Assert.assertTrue(Arrays.equals(image, receivedImage));
+            }
+        }
+    }
+
+    @Test
+    public void testLateClientReceivesLatestImage() throws InterruptedException {
+        byte[] image = createImage(1000);
+        relay.onImageReceived(ImageBuffer.wrap(image));
+        connectClients();
+
+        Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
+        synchronized (receivedImages) {
+            for (byte[] receivedImage : receivedImages) {
+                Assert.assertTrue(Arrays.equals(image, receivedImage));
+            }
+        }
+    }
+}
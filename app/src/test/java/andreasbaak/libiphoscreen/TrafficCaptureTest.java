@@ -0,0 +1,148 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TrafficCaptureTest extends TestCase {
+
+    private static final int IMAGE_PORT = 1348;
+    private static final int HEARTBEAT_PORT = 1349;
+
+    private File recordedCapture;
+    private File receivedCapture;
+    private CaptureReplayServer server;
+    private ImageReceiver receiver;
+    private final TransportExecutor executor = new TransportExecutor("test", 1);
+
+    CountDownLatch imageReceivedLatch = new CountDownLatch(1);
+
+    ImageReceivedListener received = new ImageReceivedListener() {
+        @Override
+        public void onImageTaken() {
+        }
+
+        @Override
+        public void onImageReceived(ImageBuffer image) {
+            imageReceivedLatch.countDown();
+        }
+    };
+
+    NetworkConnectionStatusListener networkConnectionStatusListener = new NetworkConnectionStatusListener() {
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    };
+
+    @Before
+    public void createCaptures() throws IOException {
+        recordedCapture = File.createTempFile("recorded", ".capture");
+        receivedCapture = File.createTempFile("received", ".capture");
+        // TrafficCapture writes its header only into empty files.
+        Assert.assertTrue(recordedCapture.delete());
+        Assert.assertTrue(receivedCapture.delete());
+    }
+
+    @After
+    public void cleanup() {
+        Assert.assertTrue(executor.shutdown(5000));
+        if (server != null) {
+            server.close();
+        }
+        recordedCapture.delete();
+        receivedCapture.delete();
+    }
+
+    /**
+     * Record the frames of a short session in the same segmentation as the ImageReceiver does:
+     * each command byte on its own, then the size of the image together with the image data.
+     */
+    private void recordSession() throws IOException, InterruptedException {
+        byte[] data = new byte[200];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i % 0xff) & 0xff);
+        }
+        int size = data.length;
+        byte[] intAsByteArray = new byte[4];
+        for (int i = 0; i < 4; ++i) {
+            intAsByteArray[i] = (byte)((size % 0xff) & 0xff);
+            size /= 0xff;
+        }
+
+        TrafficCapture capture = new TrafficCapture(recordedCapture);
+        capture.record(TrafficCapture.CHANNEL_HEARTBEAT, ByteBuffer.wrap(new byte[]{0}));
+        capture.record(TrafficCapture.CHANNEL_IMAGE, ByteBuffer.wrap(new byte[]{1}));
+        Thread.sleep(50);
+        capture.record(TrafficCapture.CHANNEL_IMAGE, ByteBuffer.wrap(new byte[]{2}));
+        capture.record(TrafficCapture.CHANNEL_IMAGE, ByteBuffer.wrap(intAsByteArray), ByteBuffer.wrap(data));
+        capture.close();
+    }
+
+    private static List<byte[]> readImageFrames(File file) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        TrafficCapture.Reader reader = new TrafficCapture.Reader(file);
+        while (reader.next()) {
+            if (reader.getChannel() == TrafficCapture.CHANNEL_IMAGE) {
+                frames.add(reader.getData());
+            }
+        }
+        reader.close();
+        return frames;
+    }
+
+    private void replay(boolean realTime) throws Exception {
+        recordSession();
+        server = new CaptureReplayServer(recordedCapture, IMAGE_PORT, HEARTBEAT_PORT, realTime);
+        server.start();
+
+        TrafficCapture capture = new TrafficCapture(receivedCapture);
+        receiver = new ImageReceiver("127.0.0.1", IMAGE_PORT, received, networkConnectionStatusListener);
+        receiver.setTrafficCapture(capture);
+        executor.execute(receiver);
+
+        long replayNanos = server.awaitFinished(10000);
+        Assert.assertTrue(imageReceivedLatch.await(10, TimeUnit.SECONDS));
+        capture.close();
+        if (realTime) {
+            Assert.assertTrue(replayNanos >= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+
+        List<byte[]> recorded = readImageFrames(recordedCapture);
+        List<byte[]> received = readImageFrames(receivedCapture);
+        Assert.assertEquals(recorded.size(), received.size());
+        for (int i = 0; i < recorded.size(); ++i) {
+            Assert.assertTrue(Arrays.equals(recorded.get(i), received.get(i)));
+        }
+    }
+
+    @Test
+    public void testReplayAsFastAsPossible() throws Exception {
+        replay(false);
+    }
+
+    @Test
+    public void testReplayAtRecordedSpeed() throws Exception {
+        replay(true);
+    }
+}
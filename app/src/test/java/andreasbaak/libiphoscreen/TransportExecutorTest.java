@@ -0,0 +1,162 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TransportExecutorTest extends TestCase {
+
+    private static final int IMAGE_PORT = 1378;
+    private static final int HEARTBEAT_PORT = 1379;
+    /** No server listens on this port, so the receivers keep retrying. */
+    private static final int UNUSED_PORT = 1377;
+    private static final int CYCLES = 1000;
+    private static final String THREAD_NAME = "leaktest";
+
+    private ServerSocketChannel imageServer;
+    private ServerSocketChannel heartbeatServer;
+
+    ImageReceivedListener received = new ImageReceivedListener() {
+        @Override
+        public void onImageTaken() {
+        }
+
+        @Override
+        public void onImageReceived(ImageBuffer image) {
+        }
+    };
+
+    NetworkConnectionStatusListener networkConnectionStatusListener = new NetworkConnectionStatusListener() {
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    };
+
+    @Before
+    public void startServers() throws IOException {
+        imageServer = openServer(IMAGE_PORT);
+        heartbeatServer = openServer(HEARTBEAT_PORT);
+    }
+
+    @After
+    public void stopServers() throws IOException {
+        imageServer.close();
+        heartbeatServer.close();
+    }
+
+    private static ServerSocketChannel openServer(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+        return server;
+    }
+
+    private static int countThreads(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(name)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of open file descriptors of the process, or -1 if unknown.
+     */
+    private static int countOpenFiles() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    /**
+     * Assert that the other end of the connection has been closed.
+     */
+    private static void assertClosedByPeer(SocketChannel channel) throws IOException {
+        try {
+            channel.socket().setSoTimeout(1000);
+            Assert.assertEquals(-1, channel.socket().getInputStream().read());
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Start both receivers, wait until they are connected and stop them again.
+     */
+    private void runCycle() throws IOException {
+        TransportExecutor executor = new TransportExecutor(THREAD_NAME, 2);
+        executor.execute(new HeartbeatReceiver("127.0.0.1", HEARTBEAT_PORT));
+        executor.execute(new ImageReceiver("127.0.0.1", IMAGE_PORT,
+                received, networkConnectionStatusListener));
+        SocketChannel image = imageServer.accept();
+        SocketChannel heartbeat = heartbeatServer.accept();
+
+        Assert.assertTrue(executor.shutdown(1000));
+        Assert.assertEquals(0, executor.getTaskCount());
+        assertClosedByPeer(image);
+        assertClosedByPeer(heartbeat);
+    }
+
+    @Test
+    public void testNoLeaksAcrossStartStopCycles() throws Exception {
+        // The first cycle may open descriptors that the runtime keeps for good.
+        runCycle();
+        int openFiles = countOpenFiles();
+        for (int i = 0; i < CYCLES; ++i) {
+            runCycle();
+        }
+        Assert.assertEquals(0, countThreads(THREAD_NAME));
+        if (openFiles >= 0) {
+            Assert.assertEquals(openFiles, countOpenFiles());
+        }
+    }
+
+    @Test
+    public void testShutdownDoesNotWaitForRetryDelay() throws Exception {
+        TransportExecutor executor = new TransportExecutor(THREAD_NAME, 2);
+        executor.execute(new HeartbeatReceiver("127.0.0.1", UNUSED_PORT));
+        executor.execute(new ImageReceiver("127.0.0.1", UNUSED_PORT,
+                received, networkConnectionStatusListener));
+        // Let both receivers fail to connect and wait for the next attempt.
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        Assert.assertTrue(executor.shutdown(1000));
+        Assert.assertTrue(System.nanoTime() - start < 250 * 1000 * 1000);
+        Assert.assertEquals(0, countThreads(THREAD_NAME));
+    }
+
+    @Test
+    public void testTasksAreNotQueued() {
+        TransportExecutor executor = new TransportExecutor(THREAD_NAME, 1);
+        executor.execute(new HeartbeatReceiver("127.0.0.1", UNUSED_PORT));
+        try {
+            executor.execute(new HeartbeatReceiver("127.0.0.1", UNUSED_PORT));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // All threads are busy.
+        } finally {
+            Assert.assertTrue(executor.shutdown(1000));
+        }
+    }
+}
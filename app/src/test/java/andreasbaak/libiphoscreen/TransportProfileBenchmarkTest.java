@@ -0,0 +1,178 @@
+package andreasbaak.libiphoscreen;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives the same sequence of images with every transport profile setting from a
+ * loopback server and compares the time until the last image has been received.
+ *
+ * Every other image is larger than the spill threshold, so that both the heap and the
+ * file path of the receiver are checked to deliver the exact payload with each setting.
+ * Loopback has no meaningful round-trip time, so the benchmark shows the cost of copies
+ * and system calls. The receive buffer sizes only matter on a real link.
+ *
+ * Each run pushes about a gigabyte through loopback, so the benchmark is not part of the
+ * default test run. Run it with ./gradlew latencyTest or ./gradlew test -Pperformance,
+ * see app/build.gradle.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+@Category(PerformanceTest.class)
+public class TransportProfileBenchmarkTest extends TestCase {
+
+    private static final int PORT = 1383;
+    private static final int IMAGES = 20;
+    private static final int SMALL_IMAGE_SIZE = 1500 * 1000;
+    private static final int LARGE_IMAGE_SIZE = 3000 * 1000;
+    private static final int SPILL_THRESHOLD = 2000 * 1000;
+    private static final int RUNS = 3;
+    /**
+     * No setting may take this much longer than the legacy one. The margin is generous,
+     * since loopback throughput varies by a factor of two with the load of the machine,
+     * so only a setting that is broken, e.g. one read per byte, makes the benchmark fail.
+     */
+    private static final double MAX_SLOWDOWN = 4;
+
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+    private final ImageReceivedListener imageListener = new ImageReceivedListener() {
+        @Override
+        public void onImageTaken() {
+        }
+
+        @Override
+        public void onImageReceived(ImageBuffer image) {
+            received.add(Arrays.copyOf(image.getData(), image.getLength()));
+        }
+    };
+
+    private final ImageFileReceivedListener fileListener = new ImageFileReceivedListener() {
+        @Override
+        public void onImageFileReceived(File imageFile) {
+            try {
+                RandomAccessFile file = new RandomAccessFile(imageFile, "r");
+                try {
+                    byte[] data = new byte[(int) file.length()];
+                    file.readFully(data);
+                    received.add(data);
+                } finally {
+                    file.close();
+                    Assert.assertTrue(imageFile.delete());
+                }
+            } catch (IOException e) {
+                received.add(new byte[0]);
+            }
+        }
+    };
+
+    private final NetworkConnectionStatusListener networkListener = new NetworkConnectionStatusListener() {
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    };
+
+    private static TransportProfile legacy() {
+        TransportProfile profile = new TransportProfile();
+        profile.setReceiveBufferSize(0);
+        profile.setTcpNoDelay(false);
+        profile.setKeepAlive(false);
+        profile.setDirectBuffers(false);
+        profile.setScatterReads(false);
+        return profile;
+    }
+
+    /**
+     * @return the nanoseconds from the first TAKEN until the last image has been received.
+     */
+    private long receiveAll(TransportProfile profile, byte[][] images) throws Exception {
+        LoopbackImageServer server = new LoopbackImageServer(PORT);
+        TransportExecutor executor = new TransportExecutor("benchmark", 1);
+        server.start();
+        try {
+            ImageReceiver receiver = new ImageReceiver("127.0.0.1", PORT, imageListener, networkListener);
+            receiver.setTransportProfile(profile);
+            receiver.setSpillToFile(new File(System.getProperty("java.io.tmpdir")), SPILL_THRESHOLD, fileListener);
+            executor.execute(receiver);
+            server.accept();
+
+            long start = System.nanoTime();
+            for (byte[] image : images) {
+                server.sendTaken();
+                server.sendImage(image);
+            }
+            for (byte[] image : images) {
+                byte[] data = received.poll(30, TimeUnit.SECONDS);
+                Assert.assertNotNull(data);
+                Assert.assertTrue(profile.toString(), Arrays.equals(image, data));
+            }
+            return System.nanoTime() - start;
+        } finally {
+            Assert.assertTrue(executor.shutdown(5000));
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testProfileSettings() throws Exception {
+        Random random = new Random(42);
+        byte[][] images = new byte[IMAGES][];
+        long totalBytes = 0;
+        for (int i = 0; i < IMAGES; ++i) {
+            images[i] = new byte[i % 2 == 0 ? SMALL_IMAGE_SIZE : LARGE_IMAGE_SIZE];
+            random.nextBytes(images[i]);
+            totalBytes += images[i].length;
+        }
+
+        TransportProfile direct = legacy();
+        direct.setDirectBuffers(true);
+        TransportProfile scatter = legacy();
+        scatter.setScatterReads(true);
+        TransportProfile smallBuffer = new TransportProfile();
+        smallBuffer.setReceiveBufferSize(TransportProfile.MIN_RECEIVE_BUFFER_SIZE);
+        TransportProfile largeBuffer = new TransportProfile();
+        largeBuffer.setReceiveBufferSize(TransportProfile.MAX_RECEIVE_BUFFER_SIZE);
+        TransportProfile autoTune = new TransportProfile();
+        autoTune.setAutoTune(true);
+
+        String[] names = {"legacy", "direct", "scatter", "default", "64k buffer", "4M buffer", "auto-tune"};
+        TransportProfile[] profiles = {legacy(), direct, scatter, new TransportProfile(),
+                smallBuffer, largeBuffer, autoTune};
+        // Warm up the JIT and the socket code with the legacy setting.
+        receiveAll(profiles[0], images);
+        long[] bests = new long[profiles.length];
+        for (int i = 0; i < profiles.length; ++i) {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; ++run) {
+                best = Math.min(best, receiveAll(profiles[i], images));
+            }
+            System.out.println(String.format(Locale.US, "%-10s %6.1f ms %7.1f MB/s  (%s)",
+                    names[i], best / 1e6, totalBytes * 1e3 / best, profiles[i]));
+            bests[i] = best;
+        }
+        for (int i = 1; i < profiles.length; ++i) {
+            Assert.assertTrue(names[i] + " is much slower than legacy",
+                    bests[i] <= bests[0] * MAX_SLOWDOWN);
+        }
+    }
+}